@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parser callback which passes the parsed service messages to the handlers of the register in background threads,
+ * so slow handlers do not stop the parsing. Every flow is assigned to one of the lanes by its flow id, each lane
+ * is served by a single thread: messages of the same flow (including the messages without flow id) are handled
+ * in the parsing order, messages of different flows can be handled in parallel.
+ * <br/>
+ * Each lane has a bounded queue, the parsing thread waits when the queue of the message lane is full.
+ * Messages are handled after the callback returns, so they must not be reused, see {@link ServiceMessageHolder}.
+ * <br/>
+ * Regular text and parse errors are passed to the delegate callback, if any, in the parsing thread.
+ * Messages without handlers are dropped. Exceptions thrown by the handlers are passed to the uncaught exception
+ * handler of the lane threads, the lane continues with the next message. Errors other than {@link LinkageError} stop the lane,
+ * then {@link #serviceMessage(ServiceMessage)} fails when the lane queue is full and {@link #flush()} does not wait for it.
+ * @see ServiceMessageDispatcher
+ */
+public class AsyncServiceMessageDispatcher implements ServiceMessageParserCallback, Closeable {
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  private static final int MAX_BATCH_SIZE = 256;
+
+  @NotNull private final ConcurrentServiceMessagesRegister myRegister;
+  @Nullable private final ServiceMessageParserCallback myDelegate;
+  @NotNull private final Lane[] myLanes;
+  @NotNull private final AtomicBoolean myClosed = new AtomicBoolean();
+
+  /**
+   * @param register register with the handlers
+   * @param laneCount number of lanes, i.e. threads handling the messages
+   */
+  public AsyncServiceMessageDispatcher(@NotNull final ConcurrentServiceMessagesRegister register, final int laneCount) {
+    this(register, null, laneCount, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param register register with the handlers
+   * @param delegate callback for the regular text and parse errors
+   * @param laneCount number of lanes, i.e. threads handling the messages
+   * @param queueCapacity maximum number of messages waiting in every lane
+   */
+  public AsyncServiceMessageDispatcher(@NotNull final ConcurrentServiceMessagesRegister register,
+                                       @Nullable final ServiceMessageParserCallback delegate,
+                                       final int laneCount,
+                                       final int queueCapacity) {
+    this(register, delegate, laneCount, queueCapacity, null);
+  }
+
+  /**
+   * @param register register with the handlers
+   * @param delegate callback for the regular text and parse errors
+   * @param laneCount number of lanes, i.e. threads handling the messages
+   * @param queueCapacity maximum number of messages waiting in every lane
+   * @param exceptionHandler handler of the exceptions thrown by the handlers of the register,
+   *                         null to use the default handler of the lane threads
+   */
+  public AsyncServiceMessageDispatcher(@NotNull final ConcurrentServiceMessagesRegister register,
+                                       @Nullable final ServiceMessageParserCallback delegate,
+                                       final int laneCount,
+                                       final int queueCapacity,
+                                       @Nullable final Thread.UncaughtExceptionHandler exceptionHandler) {
+    if (laneCount <= 0) throw new IllegalArgumentException("Lane count should be positive: " + laneCount);
+    myRegister = register;
+    myDelegate = delegate;
+    myLanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      myLanes[i] = new Lane(queueCapacity, "Service message dispatcher lane " + i, exceptionHandler);
+    }
+  }
+
+  public void regularText(@NotNull final String text) {
+    if (myDelegate != null) myDelegate.regularText(text);
+  }
+
+  /**
+   * Puts the message to the queue of its lane, waits if the queue is full.
+   * @throws IllegalStateException if the dispatcher is closed, the lane thread has stopped or the thread was interrupted
+   */
+  public void serviceMessage(@NotNull final ServiceMessage message) {
+    if (myClosed.get()) throw new IllegalStateException("Dispatcher is closed");
+    try {
+      final Lane lane = getLane(message.getFlowId());
+      if (!BackgroundThreads.put(lane.myQueue, message, lane.myThread)) {
+        throw new IllegalStateException("Service message dispatcher lane has stopped");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for service message dispatcher");
+    }
+  }
+
+  public void parseException(@NotNull final ParseException parseException, @NotNull final String text) {
+    if (myDelegate != null) myDelegate.parseException(parseException, text);
+  }
+
+  /**
+   * Waits until all messages passed before this call are handled.
+   * @throws InterruptedIOException if the thread was interrupted
+   */
+  public void flush() throws InterruptedIOException {
+    if (myClosed.get()) return;
+    final CountDownLatch done = new CountDownLatch(myLanes.length);
+    try {
+      final Thread[] threads = new Thread[myLanes.length];
+      for (int i = 0; i < myLanes.length; i++) {
+        threads[i] = myLanes[i].myThread;
+        if (!BackgroundThreads.put(myLanes[i].myQueue, done, threads[i])) return;
+      }
+      // the dispatcher can be closed concurrently or a lane thread can stop, then the requests are never processed
+      BackgroundThreads.await(done, threads);
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message dispatcher");
+    }
+  }
+
+  /**
+   * Handles all queued messages and stops the lane threads. Messages passed concurrently with this call can be lost.
+   * @throws InterruptedIOException if the thread was interrupted
+   */
+  public void close() throws InterruptedIOException {
+    if (!myClosed.compareAndSet(false, true)) return;
+    try {
+      for (Lane lane : myLanes) {
+        BackgroundThreads.put(lane.myQueue, BackgroundThreads.CLOSE, lane.myThread);
+      }
+      for (Lane lane : myLanes) {
+        lane.myThread.join();
+      }
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message dispatcher");
+    }
+  }
+
+  @NotNull
+  private Lane getLane(@Nullable final String flowId) {
+    if (flowId == null) return myLanes[0];
+    final int hash = flowId.hashCode();
+    // spreads the flows with the hash codes differing in the high bits only
+    return myLanes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % myLanes.length];
+  }
+
+  private class Lane implements Runnable {
+    @NotNull private final BlockingQueue<Object> myQueue;
+    @NotNull private final Thread myThread;
+
+    private Lane(final int queueCapacity, @NotNull final String name, @Nullable final Thread.UncaughtExceptionHandler exceptionHandler) {
+      myQueue = new ArrayBlockingQueue<Object>(queueCapacity);
+      myThread = new Thread(this, name);
+      myThread.setDaemon(true);
+      if (exceptionHandler != null) myThread.setUncaughtExceptionHandler(exceptionHandler);
+      myThread.start();
+    }
+
+    public void run() {
+      final List<Object> batch = new ArrayList<Object>(MAX_BATCH_SIZE);
+      try {
+        while (true) {
+          batch.add(myQueue.take());
+          myQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+          for (Object item : batch) {
+            if (item instanceof ServiceMessage) {
+              BackgroundThreads.handle(myRegister, (ServiceMessage)item, myThread);
+            } else if (item instanceof CountDownLatch) {
+              ((CountDownLatch)item).countDown();
+            } else if (item == BackgroundThreads.CLOSE) {
+              BackgroundThreads.releaseFlushRequests(myQueue);
+              return;
+            }
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        BackgroundThreads.releaseFlushRequests(myQueue);
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Common code of the classes which process service messages in background threads:
+ * {@link ServiceMessageWriter}, {@link AsyncServiceMessageDispatcher} and {@link ServiceMessageRingBuffer}.
+ * <br/>
+ * Queues of the background threads contain messages, flush requests ({@link CountDownLatch}es counted down
+ * when all items queued before them are processed) and the {@link #CLOSE} marker. The callers never wait for
+ * a stopped thread: waiting is done in short intervals and stops when the thread is not alive.
+ */
+final class BackgroundThreads {
+  /** marker which stops the background thread */
+  static final Object CLOSE = new Object();
+  /** interval of the checks whether the background thread is alive */
+  static final long CHECK_INTERVAL_MILLIS = 100;
+
+  private BackgroundThreads() {
+  }
+
+  /**
+   * Puts the item to the queue, waits for the space in the queue while the thread processing it is alive.
+   * @return false if the thread has stopped and the item cannot be queued
+   */
+  static boolean put(@NotNull final BlockingQueue<Object> queue, @NotNull final Object item, @NotNull final Thread thread)
+    throws InterruptedException {
+    while (!queue.offer(item, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+      if (!thread.isAlive()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Waits until the flush request is processed or any of the threads which should process it stops.
+   */
+  static void await(@NotNull final CountDownLatch request, @NotNull final Thread... threads) throws InterruptedException {
+    while (!request.await(CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+      for (Thread thread : threads) {
+        if (!thread.isAlive()) return;
+      }
+    }
+  }
+
+  /**
+   * Removes all items from the queue of the stopping thread and releases the flush requests among them.
+   */
+  static void releaseFlushRequests(@NotNull final BlockingQueue<Object> queue) {
+    final List<Object> items = new ArrayList<Object>();
+    queue.drainTo(items);
+    for (Object item : items) {
+      if (item instanceof CountDownLatch) ((CountDownLatch)item).countDown();
+    }
+  }
+
+  /**
+   * Passes the message to the handlers. Exceptions and linkage errors thrown by them are passed to the uncaught exception
+   * handler of the thread, so the thread continues with the next message. Other errors, e.g. {@link OutOfMemoryError},
+   * leave the state of the handlers suspect: they stop the thread and are reported to the same handler by the thread itself.
+   */
+  static void handle(@NotNull final ConcurrentServiceMessagesRegister register,
+                     @NotNull final ServiceMessage message,
+                     @NotNull final Thread thread) {
+    try {
+      register.dispatch(message);
+    } catch (Exception e) {
+      reportFailure(thread, e);
+    } catch (LinkageError e) {
+      reportFailure(thread, e);
+    }
+  }
+
+  private static void reportFailure(@NotNull final Thread thread, @NotNull final Throwable failure) {
+    final Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+    if (handler != null) handler.uncaughtException(thread, failure);
+  }
+
+  /**
+   * Restores the interrupted status of the current thread.
+   * @param what name of the waited object for the message
+   * @return exception to throw
+   */
+  @NotNull
+  static InterruptedIOException interrupted(@NotNull final String what) {
+    Thread.currentThread().interrupt();
+    return new InterruptedIOException("Interrupted while waiting for " + what);
+  }
+}
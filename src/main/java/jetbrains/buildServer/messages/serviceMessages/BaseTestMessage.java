@@ -16,7 +16,6 @@
 
 package jetbrains.buildServer.messages.serviceMessages;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
 import org.jetbrains.annotations.NotNull;
 
@@ -28,10 +27,10 @@ public abstract class BaseTestMessage extends MessageWithAttributes {
     super(messageName, createMap(name, attrs));
   }
 
-  private static Map<String, String> createMap(final String name, final Map<String, String> attrs) {
-    Map<String, String> res = new LinkedHashMap<String, String>();
-    res.put("name", name);
-    res.putAll(attrs);
+  private static MessageAttributes createMap(final String name, final Map<String, String> attrs) {
+    MessageAttributes res = new MessageAttributes(attrs.size() + 1);
+    res.set("name", name);
+    res.setAll(attrs);
     return res;
   }
 
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decodes service messages encoded by {@link BinaryServiceMessageEncoder}, see {@link BinaryServiceMessageFormat}.
+ * Decoded message is the same as the message parsed from the text of the encoded message: it is created by the factory
+ * registry of the parser, the reserved attributes, timestamp and flow id are handled and invalid attribute names
+ * are reported with {@link ParseException}. Strings are taken from the dictionary of the parser if it has one.
+ * <br/>
+ * Messages can be decoded from a buffer which is filled in parts, see {@link #decode(ByteBuffer)}, or read from a stream.
+ * Instances are not thread-safe.
+ */
+public final class BinaryServiceMessageDecoder {
+  /**
+   * Default maximum length in bytes of the encoded message: a message of {@link StreamingServiceMessageParser#DEFAULT_MAX_MESSAGE_LENGTH}
+   * characters takes at most 3 bytes per character in UTF-8, names and lengths take fewer bytes than in the message text.
+   */
+  public static final int DEFAULT_MAX_FRAME_LENGTH = 3 * StreamingServiceMessageParser.DEFAULT_MAX_MESSAGE_LENGTH;
+  private static final int UTF8_BYTES_PER_CHAR = 3;
+
+  @NotNull private final ServiceMessageParser myParser;
+  @NotNull private byte[] myBytes = new byte[256];
+  @NotNull private char[] myChars = new char[256];
+  @NotNull private String[] myAttributes = new String[16];
+  private int myPos;
+  private int myEnd;
+  /** -1 if not set */
+  private int myMaxFrameLength = -1;
+
+  public BinaryServiceMessageDecoder() {
+    this(new ServiceMessageParser());
+  }
+
+  /**
+   * @param parser parser which factory registry and dictionary are used
+   */
+  public BinaryServiceMessageDecoder(@NotNull final ServiceMessageParser parser) {
+    myParser = parser;
+  }
+
+  /**
+   * @return maximum length in bytes of the encoded message without the length prefix
+   * @see #setMaxFrameLength(int)
+   */
+  public int getMaxFrameLength() {
+    if (myMaxFrameLength != -1) return myMaxFrameLength;
+    final int maxMessageLength = myParser.getMaxMessageLength();
+    if (maxMessageLength == Integer.MAX_VALUE) return DEFAULT_MAX_FRAME_LENGTH;
+    return (int)Math.min((long)maxMessageLength * UTF8_BYTES_PER_CHAR, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Sets maximum length of the encoded message, longer messages are rejected before the memory for them is allocated,
+   * so a corrupted length prefix does not cause an allocation of up to 2 GB.
+   * By default the limit is {@link #DEFAULT_MAX_FRAME_LENGTH}, or the length in UTF-8 of the longest message allowed by the parser
+   * if it has a limit, see {@link ServiceMessageParser#setMaxMessageLength(int)}.
+   * @param maxFrameLength maximum length in bytes of the encoded message without the length prefix
+   */
+  public void setMaxFrameLength(final int maxFrameLength) {
+    if (maxFrameLength <= 0) throw new IllegalArgumentException("Maximum frame length should be positive: " + maxFrameLength);
+    myMaxFrameLength = maxFrameLength;
+  }
+
+  /**
+   * Decodes the message starting at the position of the buffer.
+   * @param buffer buffer with encoded messages
+   * @return decoded message with the position of the buffer moved after it, or null if the buffer has only a part of the message,
+   * the position is not changed then
+   * @throws ParseException if the message is malformed, the position is moved after the message. If the message is longer
+   * than the maximum frame length and the buffer has only a part of it, the position is moved after the length prefix
+   */
+  @Nullable
+  public ServiceMessage decode(@NotNull final ByteBuffer buffer) throws ParseException {
+    final int start = buffer.position();
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        buffer.position(start);
+        return null;
+      }
+      final byte b = buffer.get();
+      length = addVarintByte(length, b, shift);
+      if (b >= 0) break;
+    }
+    if (length > getMaxFrameLength()) {
+      buffer.position(buffer.position() + Math.min(length, buffer.remaining()));
+      throw tooLong(length);
+    }
+    if (buffer.remaining() < length) {
+      buffer.position(start);
+      return null;
+    }
+
+    ensureBytesCapacity(length);
+    buffer.get(myBytes, 0, length);
+    return decodePayload(length);
+  }
+
+  /**
+   * Reads the next message from the stream.
+   * @param in stream with encoded messages
+   * @return decoded message or null if the stream has ended before the message
+   * @throws IOException if the stream fails or has ended in the middle of the message
+   * @throws ParseException if the message is malformed or longer than the maximum frame length,
+   * the stream is positioned after the message
+   */
+  @Nullable
+  public ServiceMessage read(@NotNull final InputStream in) throws IOException, ParseException {
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      final int b = in.read();
+      if (b == -1) {
+        if (shift == 0) return null;
+        throw new EOFException("Unexpected end of the service message");
+      }
+      length = addVarintByte(length, (byte)b, shift);
+      if (b < 0x80) break;
+    }
+    if (length > getMaxFrameLength()) {
+      skip(in, length);
+      throw tooLong(length);
+    }
+
+    ensureBytesCapacity(length);
+    int read = 0;
+    while (read < length) {
+      final int count = in.read(myBytes, read, length - read);
+      if (count == -1) throw new EOFException("Unexpected end of the service message");
+      read += count;
+    }
+    return decodePayload(length);
+  }
+
+  private static void skip(@NotNull final InputStream in, final int length) throws IOException {
+    long skipped = 0;
+    while (skipped < length) {
+      final long count = in.skip(length - skipped);
+      if (count > 0) {
+        skipped += count;
+      } else if (in.read() == -1) {
+        throw new EOFException("Unexpected end of the service message");
+      } else {
+        skipped++;
+      }
+    }
+  }
+
+  private static int addVarintByte(final int value, final byte b, final int shift) throws ParseException {
+    if (shift > 28 || shift == 28 && (b & 0x78) != 0) throw malformed();
+    return value | (b & 0x7F) << shift;
+  }
+
+  @NotNull
+  private ServiceMessage decodePayload(final int length) throws ParseException {
+    myPos = 0;
+    myEnd = length;
+    final ServiceMessageDictionary dictionary = myParser.getDictionary();
+
+    final String name = readName(true, dictionary);
+    final ServiceMessage message = myParser.getFactoryRegistry().createServiceMessage(name);
+    final int kind = readVarint();
+    if (kind == BinaryServiceMessageFormat.ARGUMENT) {
+      final String argument = readString(null);
+      checkEnd();
+      message.initArgument(name, argument);
+      return message;
+    }
+    if (kind != BinaryServiceMessageFormat.ATTRIBUTES) throw malformed();
+
+    final int count = readVarint();
+    // every attribute takes at least 2 bytes, check the count before allocating the array
+    if (count > (myEnd - myPos) / 2) throw malformed();
+    if (2 * count > myAttributes.length) myAttributes = new String[2 * count];
+    for (int i = 0; i < count; i++) {
+      myAttributes[2 * i] = readName(false, dictionary);
+      myAttributes[2 * i + 1] = readString(dictionary);
+    }
+    checkEnd();
+    try {
+      message.initAttributes(name, myAttributes, count);
+    } finally {
+      Arrays.fill(myAttributes, 0, 2 * count, null);
+    }
+    return message;
+  }
+
+  @NotNull
+  private String readName(final boolean messageName, @Nullable final ServiceMessageDictionary dictionary) throws ParseException {
+    final int id = readVarint();
+    if (id == BinaryServiceMessageFormat.LITERAL) return readString(dictionary);
+
+    final String name = messageName ? BinaryServiceMessageFormat.getMessageName(id) : BinaryServiceMessageFormat.getAttributeName(id);
+    if (name == null) throw new ParseException("Unknown " + (messageName ? "message" : "attribute") + " name id: " + id, myPos);
+    return name;
+  }
+
+  private int readVarint() throws ParseException {
+    int result = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (myPos == myEnd) throw malformed();
+      final byte b = myBytes[myPos++];
+      result = addVarintByte(result, b, shift);
+      if (b >= 0) return result;
+    }
+  }
+
+  @NotNull
+  private String readString(@Nullable final ServiceMessageDictionary dictionary) throws ParseException {
+    final int length = readVarint();
+    if (length > myEnd - myPos) throw malformed();
+    if (length > myChars.length) myChars = new char[grow(myChars.length, length)];
+
+    final byte[] bytes = myBytes;
+    final char[] chars = myChars;
+    final int end = myPos + length;
+    int pos = myPos;
+    int count = 0;
+    while (pos < end) {
+      final int b = bytes[pos++];
+      if (b >= 0) {
+        chars[count++] = (char)b;
+      } else if ((b & 0xE0) == 0xC0) {
+        if (pos + 1 > end) throw malformed();
+        chars[count++] = (char)(((b & 0x1F) << 6) | continuation(bytes[pos++]));
+      } else if ((b & 0xF0) == 0xE0) {
+        if (pos + 2 > end) throw malformed();
+        chars[count++] = (char)(((b & 0x0F) << 12) | (continuation(bytes[pos++]) << 6) | continuation(bytes[pos++]));
+      } else if ((b & 0xF8) == 0xF0) {
+        if (pos + 3 > end) throw malformed();
+        final int codePoint = ((b & 0x07) << 18) | (continuation(bytes[pos++]) << 12) | (continuation(bytes[pos++]) << 6) | continuation(bytes[pos++]);
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT || codePoint > Character.MAX_CODE_POINT) throw malformed();
+        count += Character.toChars(codePoint, chars, count);
+      } else {
+        throw malformed();
+      }
+    }
+    myPos = end;
+
+    final String result = new String(chars, 0, count);
+    return dictionary == null ? result : dictionary.intern(result);
+  }
+
+  private static int continuation(final byte b) throws ParseException {
+    if ((b & 0xC0) != 0x80) throw malformed();
+    return b & 0x3F;
+  }
+
+  private void checkEnd() throws ParseException {
+    if (myPos != myEnd) throw malformed();
+  }
+
+  private void ensureBytesCapacity(final int length) {
+    if (length > myBytes.length) myBytes = new byte[grow(myBytes.length, length)];
+  }
+
+  /**
+   * @return new size of the array, doubled but not larger than needed for the longest allowed message
+   */
+  private int grow(final int size, final int required) {
+    return (int)Math.max(required, Math.min(2L * size, getMaxFrameLength()));
+  }
+
+  @NotNull
+  private static ParseException malformed() {
+    return new ParseException("Malformed binary service message", 0);
+  }
+
+  @NotNull
+  private ParseException tooLong(final int length) {
+    return new ParseException("Binary service message is too long: " + length + " bytes, maximum is " + getMaxFrameLength(), 0);
+  }
+}
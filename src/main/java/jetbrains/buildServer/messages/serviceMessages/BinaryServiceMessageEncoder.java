@@ -0,0 +1,237 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes service messages to the binary form, see {@link BinaryServiceMessageFormat}.
+ * Message text is not created and the values are not escaped, so encoding is cheaper than {@link ServiceMessage#asString()}
+ * and decoding with {@link BinaryServiceMessageDecoder} is cheaper than parsing.
+ * <br/>
+ * Instances are not thread-safe, the encoder reuses its buffer for every message.
+ */
+public final class BinaryServiceMessageEncoder {
+  private static final int MAX_VARINT_LENGTH = 5;
+
+  @NotNull private byte[] myBuffer = new byte[256];
+  private int mySize;
+  @NotNull private final byte[] myLength = new byte[MAX_VARINT_LENGTH];
+  @NotNull private final AttributeWriter myAttributeWriter = new AttributeWriter();
+
+  /**
+   * @param message message
+   * @return encoded message with its length
+   */
+  @NotNull
+  public byte[] encode(@NotNull final ServiceMessage message) {
+    encodePayload(message);
+    final int lengthSize = encodeLength();
+    final byte[] result = new byte[lengthSize + mySize];
+    System.arraycopy(myLength, 0, result, 0, lengthSize);
+    System.arraycopy(myBuffer, 0, result, lengthSize, mySize);
+    return result;
+  }
+
+  /**
+   * Writes encoded message with its length to the buffer starting from its position.
+   * @param message message
+   * @param target target buffer
+   * @throws BufferOverflowException if there is not enough space in the buffer, the position of the buffer is not changed then
+   */
+  public void encode(@NotNull final ServiceMessage message, @NotNull final ByteBuffer target) throws BufferOverflowException {
+    encodePayload(message);
+    final int lengthSize = encodeLength();
+    if (target.remaining() < lengthSize + mySize) throw new BufferOverflowException();
+    target.put(myLength, 0, lengthSize);
+    target.put(myBuffer, 0, mySize);
+  }
+
+  /**
+   * Writes encoded message with its length to the stream.
+   * @param message message
+   * @param out target stream
+   * @throws IOException if the stream fails
+   */
+  public void write(@NotNull final ServiceMessage message, @NotNull final OutputStream out) throws IOException {
+    encodePayload(message);
+    out.write(myLength, 0, encodeLength());
+    out.write(myBuffer, 0, mySize);
+  }
+
+  /**
+   * Writes the payload length to {@link #myLength}.
+   * @return number of bytes in the length
+   */
+  private int encodeLength() {
+    int value = mySize;
+    int pos = 0;
+    while ((value & ~0x7F) != 0) {
+      myLength[pos++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    myLength[pos++] = (byte)value;
+    return pos;
+  }
+
+  private void encodePayload(@NotNull final ServiceMessage message) {
+    mySize = 0;
+    final String name = message.getMessageName();
+    final int nameId = BinaryServiceMessageFormat.getMessageNameId(name);
+    writeVarint(nameId);
+    if (nameId == BinaryServiceMessageFormat.LITERAL) writeString(name);
+
+    if (message.isArgumentOnly()) {
+      writeVarint(BinaryServiceMessageFormat.ARGUMENT);
+      //noinspection ConstantConditions
+      writeString(message.getArgument());
+      return;
+    }
+
+    writeVarint(BinaryServiceMessageFormat.ATTRIBUTES);
+    // the number of attributes is written when they are counted
+    final int countPosition = mySize;
+    ensureCapacity(MAX_VARINT_LENGTH);
+    mySize += MAX_VARINT_LENGTH;
+    final int attributesStart = mySize;
+    myAttributeWriter.myCount = 0;
+    try {
+      message.visitSerializedAttributes(myAttributeWriter);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    final int count = myAttributeWriter.myCount;
+    final int countLength = varintLength(count);
+    System.arraycopy(myBuffer, attributesStart, myBuffer, countPosition + countLength, mySize - attributesStart);
+    final int end = mySize - (MAX_VARINT_LENGTH - countLength);
+    mySize = countPosition;
+    writeVarint(count);
+    mySize = end;
+  }
+
+  private void writeAttributeName(@NotNull final String name) {
+    final int id = BinaryServiceMessageFormat.getAttributeNameId(name);
+    writeVarint(id);
+    if (id == BinaryServiceMessageFormat.LITERAL) writeString(name);
+  }
+
+  private void writeString(@NotNull final String value) {
+    writeVarint(utf8Length(value));
+    writeChars(value);
+  }
+
+  private void writeChars(@NotNull final String value) {
+    final int length = value.length();
+    ensureCapacity(3 * length);
+    final byte[] buffer = myBuffer;
+    int pos = mySize;
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer[pos++] = (byte)c;
+      } else if (c < 0x800) {
+        buffer[pos++] = (byte)(0xC0 | (c >> 6));
+        buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[pos++] = (byte)(0xF0 | (codePoint >> 18));
+        buffer[pos++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[pos++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[pos++] = (byte)(0x80 | (codePoint & 0x3F));
+      } else {
+        buffer[pos++] = (byte)(0xE0 | (c >> 12));
+        buffer[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+        buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+      }
+    }
+    mySize = pos;
+  }
+
+  private static int utf8Length(@NotNull final String value) {
+    final int length = value.length();
+    int result = length;
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) continue;
+      if (c < 0x800) {
+        result += 1;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        // 4 bytes for 2 characters
+        result += 2;
+        i++;
+      } else {
+        result += 2;
+      }
+    }
+    return result;
+  }
+
+  private void writeVarint(int value) {
+    ensureCapacity(MAX_VARINT_LENGTH);
+    while ((value & ~0x7F) != 0) {
+      myBuffer[mySize++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    myBuffer[mySize++] = (byte)value;
+  }
+
+  private static int varintLength(final int value) {
+    int result = 1;
+    for (int rest = value >>> 7; rest != 0; rest >>>= 7) {
+      result++;
+    }
+    return result;
+  }
+
+  private void ensureCapacity(final int additional) {
+    if (mySize + additional <= myBuffer.length) return;
+    final byte[] buffer = new byte[Math.max(mySize + additional, 2 * myBuffer.length)];
+    System.arraycopy(myBuffer, 0, buffer, 0, mySize);
+    myBuffer = buffer;
+  }
+
+  private class AttributeWriter implements ServiceMessage.SerializedAttributeVisitor {
+    private int myCount;
+
+    public void attribute(@NotNull final String name, @Nullable final String value) {
+      myCount++;
+      writeAttributeName(name);
+      writeString(value == null ? "null" : value);
+    }
+
+    public void tags(@NotNull final List<String> tags) {
+      myCount++;
+      writeAttributeName(ServiceMessage.TAGS_ATRRIBUTE);
+      int length = (tags.size() - 1) * utf8Length(ServiceMessage.TAGS_SEPARATOR);
+      for (String tag : tags) {
+        length += utf8Length(tag);
+      }
+      writeVarint(length);
+      for (int i = 0; i < tags.size(); i++) {
+        if (i > 0) writeChars(ServiceMessage.TAGS_SEPARATOR);
+        writeChars(tags.get(i));
+      }
+    }
+  }
+}
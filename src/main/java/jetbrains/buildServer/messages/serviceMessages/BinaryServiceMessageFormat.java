@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Binary form of the service messages used by {@link BinaryServiceMessageEncoder} and {@link BinaryServiceMessageDecoder}.
+ * <pre>
+ * message   := length(varint) payload           length is the number of bytes in the payload
+ * payload   := name kind body
+ * name      := id(varint)                        known message name, id > 0
+ *            | 0 string                          any other name
+ * kind      := 0 count(varint) attribute*        "##teamcity[name key='value' ...]"
+ *            | 1 string                          "##teamcity[name 'argument']"
+ * attribute := key string                        key is encoded the same way as name, with ids of known attribute names
+ * string    := length(varint) bytes              UTF-8, unpaired surrogates are encoded as 3 byte sequences
+ * </pre>
+ * Varints are unsigned, 7 bits per byte starting from the lowest bits, the highest bit is set in all bytes but the last.
+ * <br/>
+ * Attributes are stored in the same order and with the same values as in {@link ServiceMessage#asString()},
+ * including the reserved attributes, so the message is converted to the same text before encoding and after decoding.
+ * <br/>
+ * Ids are indices in the arrays below plus one, new names can only be added to the end of the arrays.
+ */
+final class BinaryServiceMessageFormat {
+  static final int ATTRIBUTES = 0;
+  static final int ARGUMENT = 1;
+  static final int LITERAL = 0;
+
+  @NotNull private static final String[] MESSAGE_NAMES = {
+    ServiceMessageTypes.PUBLISH_ARTIFACTS,
+    ServiceMessageTypes.TEST_SUITE_STARTED,
+    ServiceMessageTypes.TEST_SUITE_FINISHED,
+    ServiceMessageTypes.TEST_STARTED,
+    ServiceMessageTypes.TEST_FINISHED,
+    ServiceMessageTypes.TEST_IGNORED,
+    ServiceMessageTypes.TEST_STD_OUT,
+    ServiceMessageTypes.TEST_STD_ERR,
+    ServiceMessageTypes.TEST_FAILED,
+    ServiceMessageTypes.PROGRESS_MESSAGE,
+    ServiceMessageTypes.PROGRESS_START,
+    ServiceMessageTypes.PROGRESS_FINISH,
+    ServiceMessageTypes.BUILD_STATUS,
+    ServiceMessageTypes.BUILD_NUMBER,
+    ServiceMessageTypes.BUILD_PARAMETER,
+    ServiceMessageTypes.BUILD_ENVIRONMENT,
+    ServiceMessageTypes.BUILD_SET_PARAMETER,
+    ServiceMessageTypes.BUILD_STATISTIC_VALUE,
+    ServiceMessageTypes.TEST_NAVIGATION_INFO,
+    ServiceMessageTypes.BLOCK_OPENED,
+    ServiceMessageTypes.BLOCK_CLOSED,
+    ServiceMessageTypes.COMPILATION_STARTED,
+    ServiceMessageTypes.COMPILATION_FINISHED,
+    ServiceMessageTypes.MESSAGE,
+    ServiceMessageTypes.INTERNAL_ERROR
+  };
+
+  @NotNull private static final String[] ATTRIBUTE_NAMES = {
+    "name",
+    "flowId",
+    "timestamp",
+    "duration",
+    "captureStandardOutput",
+    "locationHint",
+    "message",
+    "details",
+    "expected",
+    "actual",
+    "type",
+    "out",
+    "text",
+    "status",
+    "errorDetails",
+    "key",
+    "value",
+    "compiler",
+    "cause",
+    ServiceMessage.TAGS_ATRRIBUTE,
+    ServiceMessage.ARG_ATTRIBUTE
+  };
+
+  @NotNull private static final Map<String, Integer> MESSAGE_NAME_IDS = createIds(MESSAGE_NAMES);
+  @NotNull private static final Map<String, Integer> ATTRIBUTE_NAME_IDS = createIds(ATTRIBUTE_NAMES);
+
+  private BinaryServiceMessageFormat() {
+  }
+
+  /**
+   * @return id of the known message name or {@link #LITERAL}
+   */
+  static int getMessageNameId(@NotNull final String name) {
+    final Integer id = MESSAGE_NAME_IDS.get(name);
+    return id == null ? LITERAL : id;
+  }
+
+  /**
+   * @return id of the known attribute name or {@link #LITERAL}
+   */
+  static int getAttributeNameId(@NotNull final String name) {
+    final Integer id = ATTRIBUTE_NAME_IDS.get(name);
+    return id == null ? LITERAL : id;
+  }
+
+  @Nullable
+  static String getMessageName(final int id) {
+    return id > 0 && id <= MESSAGE_NAMES.length ? MESSAGE_NAMES[id - 1] : null;
+  }
+
+  @Nullable
+  static String getAttributeName(final int id) {
+    return id > 0 && id <= ATTRIBUTE_NAMES.length ? ATTRIBUTE_NAMES[id - 1] : null;
+  }
+
+  @NotNull
+  private static Map<String, Integer> createIds(@NotNull final String[] names) {
+    final Map<String, Integer> result = new HashMap<String, Integer>();
+    for (int i = 0; i < names.length; i++) {
+      result.put(names[i], i + 1);
+    }
+    return result;
+  }
+}
@@ -23,7 +23,7 @@ import org.jetbrains.annotations.NotNull;
  * Date: 04.09.2008
  */
 public class BlockOpened extends BaseBlockMessage {
-  // used by reflection
+  // used by ServiceMessageFactoryRegistry
   BlockOpened() {
   }
 
@@ -16,12 +16,14 @@
 
 package jetbrains.buildServer.messages.serviceMessages;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class BuildStatisticValue extends MessageWithAttributes {
-  // used by reflection
+  private double myNumericValue;
+  private volatile boolean myNumericValueParsed;
+
+  // used by ServiceMessageFactoryRegistry
   BuildStatisticValue() {
   }
 
@@ -33,10 +35,10 @@ public class BuildStatisticValue extends MessageWithAttributes {
     super(ServiceMessageTypes.BUILD_STATISTIC_VALUE, createMap(key, String.valueOf(value)));
   }
 
-  private static Map<String, String> createMap(@NotNull String key, @NotNull String value) {
-    Map<String, String> res = new LinkedHashMap<String, String>();
-    res.put("key", key);
-    res.put("value", value);
+  private static MessageAttributes createMap(@NotNull String key, @NotNull String value) {
+    MessageAttributes res = new MessageAttributes(2);
+    res.set("key", key);
+    res.set("value", value);
     return res;
   }
 
@@ -48,6 +50,33 @@ public class BuildStatisticValue extends MessageWithAttributes {
     return getAttributeValue("value");
   }
 
+  /**
+   * Returns the value as a number, the value is parsed on the first call.
+   * @return the value or {@link Double#NaN} if the value is not specified or is not a valid number
+   */
+  public double getNumericValue() {
+    if (!myNumericValueParsed) {
+      myNumericValue = parseValue(getValue());
+      myNumericValueParsed = true;
+    }
+    return myNumericValue;
+  }
+
+  private static double parseValue(@Nullable final String value) {
+    if (value == null) return Double.NaN;
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  @Override
+  void clearCachedValues() {
+    super.clearCachedValues();
+    myNumericValueParsed = false;
+  }
+
   @Override
   public void visit(@NotNull ServiceMessageVisitor visitor) {
     visitor.visitBuildStatisticValue(this);
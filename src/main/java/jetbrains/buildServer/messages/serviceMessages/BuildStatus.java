@@ -16,12 +16,10 @@
 
 package jetbrains.buildServer.messages.serviceMessages;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
 import org.jetbrains.annotations.NotNull;
 
 public class BuildStatus extends MessageWithAttributes {
-  // used by reflection
+  // used by ServiceMessageFactoryRegistry
   BuildStatus() {
   }
 
@@ -29,10 +27,10 @@ public class BuildStatus extends MessageWithAttributes {
     super(ServiceMessageTypes.BUILD_STATUS, createMap(text, status));
   }
 
-  private static Map<String, String> createMap(@NotNull String text, @NotNull String status) {
-    Map<String, String> res = new LinkedHashMap<String, String>();
-    res.put("status", status);
-    res.put("text", text);
+  private static MessageAttributes createMap(@NotNull String text, @NotNull String status) {
+    MessageAttributes res = new MessageAttributes(2);
+    res.set("status", status);
+    res.set("text", text);
     return res;
   }
 
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Byte search in buffers which checks 8 bytes per step ("SIMD within a register"):
+ * every <code>long</code> word is xor-ed with the searched byte repeated 8 times and
+ * zero bytes of the result are detected with a couple of arithmetic operations.
+ */
+final class ByteSearch {
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long ONES = 0x0101010101010101L;
+
+  private ByteSearch() {
+  }
+
+  /**
+   * @return index of the first occurrence of the byte in the buffer between <code>from</code> (inclusive)
+   * and <code>to</code> (exclusive) absolute indices, or -1 if there is no such byte
+   */
+  static int indexOf(@NotNull final ByteBuffer buffer, final int from, final int to, final byte b) {
+    final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+    final long pattern = repeat(b);
+
+    int i = from;
+    for (; i + 8 <= to; i += 8) {
+      final long zeros = zeroBytes(buffer.getLong(i) ^ pattern);
+      if (zeros != 0) return i + firstByte(zeros, bigEndian);
+    }
+    for (; i < to; i++) {
+      if (buffer.get(i) == b) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return index of the first occurrence of any of the two bytes in the buffer between <code>from</code> (inclusive)
+   * and <code>to</code> (exclusive) absolute indices, or -1 if there is no such byte
+   */
+  static int indexOfAny(@NotNull final ByteBuffer buffer, final int from, final int to, final byte b1, final byte b2) {
+    final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+    final long pattern1 = repeat(b1);
+    final long pattern2 = repeat(b2);
+
+    int i = from;
+    for (; i + 8 <= to; i += 8) {
+      final long word = buffer.getLong(i);
+      final long zeros = zeroBytes(word ^ pattern1) | zeroBytes(word ^ pattern2);
+      if (zeros != 0) return i + firstByte(zeros, bigEndian);
+    }
+    for (; i < to; i++) {
+      final byte b = buffer.get(i);
+      if (b == b1 || b == b2) return i;
+    }
+    return -1;
+  }
+
+  private static long repeat(final byte b) {
+    return (b & 0xFFL) * ONES;
+  }
+
+  /**
+   * @return word with the high bit set in every byte which is zero in the specified word, and all other bits cleared.
+   * Unlike the shorter <code>(x - ONES) & ~x & HIGH_BITS</code> form there are no carries between bytes,
+   * so the result is exact for both byte orders.
+   */
+  private static long zeroBytes(final long word) {
+    return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+  }
+
+  private static int firstByte(final long zeroBytes, final boolean bigEndian) {
+    return (bigEndian ? Long.numberOfLeadingZeros(zeroBytes) : Long.numberOfTrailingZeros(zeroBytes)) >>> 3;
+  }
+}
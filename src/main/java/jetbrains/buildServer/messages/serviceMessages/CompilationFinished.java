@@ -23,7 +23,7 @@ import org.jetbrains.annotations.NotNull;
  * @since 6.0
  */
 public class CompilationFinished extends BaseCompilationBlockMessage {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   CompilationFinished() {
   }
 
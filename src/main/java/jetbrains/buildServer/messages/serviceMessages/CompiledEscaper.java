@@ -0,0 +1,199 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Escape rules of an {@link MapSerializerUtil.EscapeInfoProvider} collected to lookup tables: ASCII characters are looked up
+ * in arrays indexed by the character, other characters with a rule in sorted arrays. The rules are collected by calling
+ * the provider for every character once, so the provider should always return the same results.
+ * <br/>
+ * {@link MapSerializerUtil} escapes and unescapes with compiled rules in a single pass and returns the string as is
+ * when it has no characters to escape or unescape.
+ */
+final class CompiledEscaper implements MapSerializerUtil.EscapeInfoProvider {
+  private static final int ASCII_SIZE = 128;
+
+  static final CompiledEscaper STD = new CompiledEscaper(MapSerializerUtil.STD_ESCAPER);
+
+  private final char myEscapeCharacter;
+  @NotNull private final char[] myAsciiEscapes = new char[ASCII_SIZE];
+  @NotNull private final char[] myAsciiUnescapes = new char[ASCII_SIZE];
+  /** sorted non-ASCII characters which are escaped and their representations */
+  @NotNull private final char[] myEscapedChars;
+  @NotNull private final char[] myEscapes;
+  /** sorted non-ASCII representations and their original characters */
+  @NotNull private final char[] myUnescapedChars;
+  @NotNull private final char[] myUnescapes;
+  /** maximum ASCII character which is escaped, 0 if there is no such character */
+  private final char myMaxEscapedAsciiChar;
+  /** minimum non-ASCII character which is escaped, {@link Character#MAX_VALUE} if there is no such character */
+  private final char myMinEscapedChar;
+
+  private CompiledEscaper(@NotNull final MapSerializerUtil.EscapeInfoProvider provider) {
+    myEscapeCharacter = provider.escapeCharacter();
+    int escapedCount = 0;
+    int unescapedCount = 0;
+    char maxEscapedAsciiChar = 0;
+    for (int c = 0; c <= Character.MAX_VALUE; c++) {
+      if (c < ASCII_SIZE) {
+        myAsciiEscapes[c] = provider.escape((char)c);
+        myAsciiUnescapes[c] = provider.unescape((char)c);
+        if (myAsciiEscapes[c] != 0) maxEscapedAsciiChar = (char)c;
+      } else {
+        if (provider.escape((char)c) != 0) escapedCount++;
+        if (provider.unescape((char)c) != 0) unescapedCount++;
+      }
+    }
+
+    myEscapedChars = new char[escapedCount];
+    myEscapes = new char[escapedCount];
+    myUnescapedChars = new char[unescapedCount];
+    myUnescapes = new char[unescapedCount];
+    escapedCount = 0;
+    unescapedCount = 0;
+    for (int c = ASCII_SIZE; c <= Character.MAX_VALUE; c++) {
+      final char escaped = provider.escape((char)c);
+      if (escaped != 0) {
+        myEscapedChars[escapedCount] = (char)c;
+        myEscapes[escapedCount++] = escaped;
+      }
+      final char unescaped = provider.unescape((char)c);
+      if (unescaped != 0) {
+        myUnescapedChars[unescapedCount] = (char)c;
+        myUnescapes[unescapedCount++] = unescaped;
+      }
+    }
+    myMaxEscapedAsciiChar = maxEscapedAsciiChar;
+    myMinEscapedChar = myEscapedChars.length == 0 ? Character.MAX_VALUE : myEscapedChars[0];
+  }
+
+  /**
+   * @return compiled rules of the provider, the provider itself if it is already compiled
+   */
+  @NotNull
+  static CompiledEscaper compile(@NotNull final MapSerializerUtil.EscapeInfoProvider provider) {
+    if (provider instanceof CompiledEscaper) return (CompiledEscaper)provider;
+    if (provider == MapSerializerUtil.STD_ESCAPER) return STD;
+    return new CompiledEscaper(provider);
+  }
+
+  public char escape(final char c) {
+    if (c < ASCII_SIZE) return myAsciiEscapes[c];
+    if (c < myMinEscapedChar) return 0;
+    final int index = Arrays.binarySearch(myEscapedChars, c);
+    return index < 0 ? 0 : myEscapes[index];
+  }
+
+  public char unescape(final char c) {
+    if (c < ASCII_SIZE) return myAsciiUnescapes[c];
+    final int index = Arrays.binarySearch(myUnescapedChars, c);
+    return index < 0 ? 0 : myUnescapes[index];
+  }
+
+  public char escapeCharacter() {
+    return myEscapeCharacter;
+  }
+
+  /**
+   * @return index of the first character which should be escaped or -1 if there is no such character
+   */
+  int indexOfEscaped(@NotNull final String str, final int from) {
+    final int length = str.length();
+    for (int i = from; i < length; i++) {
+      final char c = str.charAt(i);
+      // most of the characters are between the escaped ASCII and non-ASCII characters
+      if (c > myMaxEscapedAsciiChar && c < myMinEscapedChar) continue;
+      if (escape(c) != 0) return i;
+    }
+    return -1;
+  }
+
+  @NotNull
+  String escape(@NotNull final String str) {
+    int start = indexOfEscaped(str, 0);
+    if (start == -1) return str;
+
+    final int length = str.length();
+    char[] result = new char[length + Math.max(16, length >> 3)];
+    str.getChars(0, start, result, 0);
+    int resultPos = start;
+    while (start < length) {
+      final int end = indexOfEscaped(str, start + 1);
+      final int runEnd = end == -1 ? length : end;
+      // escaped character, then not escaped run
+      final int required = resultPos + 2 + runEnd - start - 1;
+      if (required > result.length) {
+        final char[] grown = new char[Math.max(required, result.length + (result.length >> 1))];
+        System.arraycopy(result, 0, grown, 0, resultPos);
+        result = grown;
+      }
+      result[resultPos++] = myEscapeCharacter;
+      result[resultPos++] = escape(str.charAt(start));
+      str.getChars(start + 1, runEnd, result, resultPos);
+      resultPos += runEnd - start - 1;
+      start = runEnd;
+    }
+    return new String(result, 0, resultPos);
+  }
+
+  /**
+   * Unescapes the part of the string, the part is returned as a substring if it has no escape characters.
+   */
+  @NotNull
+  String unescape(@NotNull final String str, final int from, final int to) {
+    int pos = indexOfEscapeCharacter(str, from, to);
+    if (pos == -1) return str.substring(from, to);
+
+    final char[] result = new char[to - from];
+    int resultPos = 0;
+    int start = from;
+    while (pos != -1) {
+      str.getChars(start, pos, result, resultPos);
+      resultPos += pos - start;
+      final char unescaped = pos < to - 1 ? unescape(str.charAt(pos + 1)) : 0;
+      if (unescaped != 0) {
+        result[resultPos++] = unescaped;
+        start = pos + 2;
+      } else {
+        // escape character without a known representation after it is kept as is
+        result[resultPos++] = myEscapeCharacter;
+        start = pos + 1;
+      }
+      pos = indexOfEscapeCharacter(str, start, to);
+    }
+    str.getChars(start, to, result, resultPos);
+    resultPos += to - start;
+    return new String(result, 0, resultPos);
+  }
+
+  /**
+   * @return true if the part of the string has escape characters
+   */
+  boolean hasEscapes(@NotNull final String str, final int from, final int to) {
+    return indexOfEscapeCharacter(str, from, to) != -1;
+  }
+
+  private int indexOfEscapeCharacter(@NotNull final String str, final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      if (str.charAt(i) == myEscapeCharacter) return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thread-safe register which dispatches service messages to the handlers registered for their names.
+ * Several handlers can be registered for the same name. Name ending with '*' registers a wildcard handler
+ * for all messages which names start with the text before '*', {@link #ANY_MESSAGE} registers a handler for all messages.
+ * <br/>
+ * Handlers are kept in immutable tables which are replaced on every registration, so dispatching takes no locks
+ * and sees either the old or the new table. Handlers of every message name are collected once per table.
+ * <br/>
+ * Handlers registered for the message name are called first, then the wildcard handlers, both in the registration order.
+ * @see ServiceMessageDispatcher
+ */
+public class ConcurrentServiceMessagesRegister implements ServiceMessagesRegister {
+  public static final String ANY_MESSAGE = "*";
+
+  /** maximum number of message names which handlers are remembered, message names in the logs are not limited */
+  private static final int MAX_RESOLVED_NAMES = 1024;
+  private static final char WILDCARD = '*';
+  private static final ServiceMessageHandler[] NO_HANDLERS = new ServiceMessageHandler[0];
+
+  @NotNull private final Object myLock = new Object();
+  @NotNull private volatile Table myTable = new Table(new HashMap<String, ServiceMessageHandler[]>(),
+                                                      new LinkedHashMap<String, ServiceMessageHandler[]>());
+
+  public void registerHandler(@NotNull final String messageName, @NotNull final ServiceMessageHandler handler) {
+    synchronized (myLock) {
+      final Table table = myTable;
+      final Map<String, ServiceMessageHandler[]> handlers = copy(table, messageName);
+      final ServiceMessageHandler[] registered = handlers.get(messageName);
+      if (registered == null) {
+        handlers.put(messageName, new ServiceMessageHandler[]{handler});
+      } else {
+        final ServiceMessageHandler[] updated = new ServiceMessageHandler[registered.length + 1];
+        System.arraycopy(registered, 0, updated, 0, registered.length);
+        updated[registered.length] = handler;
+        handlers.put(messageName, updated);
+      }
+      myTable = table.with(messageName, handlers);
+    }
+  }
+
+  /**
+   * Removes all handlers registered for the name.
+   */
+  public void removeHandler(@NotNull final String messageName) {
+    synchronized (myLock) {
+      final Table table = myTable;
+      final Map<String, ServiceMessageHandler[]> handlers = copy(table, messageName);
+      if (handlers.remove(messageName) != null) {
+        myTable = table.with(messageName, handlers);
+      }
+    }
+  }
+
+  /**
+   * Removes the handler registered for the name. Does nothing if the handler wasn't registered for the name.
+   * @param messageName service message name the handler was registered with
+   * @param handler handler to remove
+   */
+  public void removeHandler(@NotNull final String messageName, @NotNull final ServiceMessageHandler handler) {
+    synchronized (myLock) {
+      final Table table = myTable;
+      final Map<String, ServiceMessageHandler[]> handlers = copy(table, messageName);
+      final ServiceMessageHandler[] registered = handlers.get(messageName);
+      if (registered == null) return;
+
+      final List<ServiceMessageHandler> updated = new ArrayList<ServiceMessageHandler>(Arrays.asList(registered));
+      if (!updated.remove(handler)) return;
+      if (updated.isEmpty()) {
+        handlers.remove(messageName);
+      } else {
+        handlers.put(messageName, updated.toArray(new ServiceMessageHandler[updated.size()]));
+      }
+      myTable = table.with(messageName, handlers);
+    }
+  }
+
+  /**
+   * @param messageName service message name
+   * @return handlers which are called for the messages with the name, in the calling order
+   */
+  @NotNull
+  public List<ServiceMessageHandler> getHandlers(@NotNull final String messageName) {
+    return Collections.unmodifiableList(Arrays.asList(myTable.resolve(messageName).clone()));
+  }
+
+  /**
+   * Passes the message to the handlers registered for its name.
+   * Exception thrown by a handler is passed to the caller, the following handlers are not called then.
+   * @param message service message
+   * @return true if the message had at least one handler
+   */
+  public boolean dispatch(@NotNull final ServiceMessage message) {
+    final ServiceMessageHandler[] handlers = myTable.resolve(message.getMessageName());
+    for (ServiceMessageHandler handler : handlers) {
+      handler.handle(message);
+    }
+    return handlers.length > 0;
+  }
+
+  /**
+   * @return copy of the handlers map of the table which contains the name
+   */
+  @NotNull
+  private static Map<String, ServiceMessageHandler[]> copy(@NotNull final Table table, @NotNull final String messageName) {
+    return isWildcard(messageName)
+           ? new LinkedHashMap<String, ServiceMessageHandler[]>(table.myWildcardHandlers)
+           : new HashMap<String, ServiceMessageHandler[]>(table.myHandlers);
+  }
+
+  private static boolean isWildcard(@NotNull final String messageName) {
+    return messageName.length() > 0 && messageName.charAt(messageName.length() - 1) == WILDCARD;
+  }
+
+  private static class Table {
+    @NotNull private final Map<String, ServiceMessageHandler[]> myHandlers;
+    /** wildcard names in the order of the first registration */
+    @NotNull private final Map<String, ServiceMessageHandler[]> myWildcardHandlers;
+    @NotNull private final String[] myPrefixes;
+    @NotNull private final ServiceMessageHandler[][] myPrefixHandlers;
+    @NotNull private final ConcurrentMap<String, ServiceMessageHandler[]> myResolved = new ConcurrentHashMap<String, ServiceMessageHandler[]>();
+
+    private Table(@NotNull final Map<String, ServiceMessageHandler[]> handlers,
+                  @NotNull final Map<String, ServiceMessageHandler[]> wildcardHandlers) {
+      myHandlers = handlers;
+      myWildcardHandlers = wildcardHandlers;
+      myPrefixes = new String[wildcardHandlers.size()];
+      myPrefixHandlers = new ServiceMessageHandler[wildcardHandlers.size()][];
+      int i = 0;
+      for (Map.Entry<String, ServiceMessageHandler[]> entry : wildcardHandlers.entrySet()) {
+        myPrefixes[i] = entry.getKey().substring(0, entry.getKey().length() - 1);
+        myPrefixHandlers[i++] = entry.getValue();
+      }
+    }
+
+    @NotNull
+    private Table with(@NotNull final String messageName, @NotNull final Map<String, ServiceMessageHandler[]> handlers) {
+      return isWildcard(messageName) ? new Table(myHandlers, handlers) : new Table(handlers, myWildcardHandlers);
+    }
+
+    @NotNull
+    private ServiceMessageHandler[] resolve(@NotNull final String messageName) {
+      ServiceMessageHandler[] result = myResolved.get(messageName);
+      if (result != null) return result;
+
+      final List<ServiceMessageHandler> handlers = new ArrayList<ServiceMessageHandler>();
+      // names ending with '*' are registered as wildcards, so such messages have no exact handlers
+      final ServiceMessageHandler[] exact = isWildcard(messageName) ? null : myHandlers.get(messageName);
+      if (exact != null) handlers.addAll(Arrays.asList(exact));
+      for (int i = 0; i < myPrefixes.length; i++) {
+        if (messageName.startsWith(myPrefixes[i])) handlers.addAll(Arrays.asList(myPrefixHandlers[i]));
+      }
+      result = handlers.isEmpty() ? NO_HANDLERS : handlers.toArray(new ServiceMessageHandler[handlers.size()]);
+      if (myResolved.size() < MAX_RESOLVED_NAMES) myResolved.put(messageName, result);
+      return result;
+    }
+  }
+}
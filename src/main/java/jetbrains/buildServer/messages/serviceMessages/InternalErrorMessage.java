@@ -19,9 +19,6 @@ package jetbrains.buildServer.messages.serviceMessages;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collections;
-import java.util.Map;
-
 
 /**
  * Internal error is a case when build has failed to start because of
@@ -30,7 +27,7 @@ import java.util.Map;
  */
 public class InternalErrorMessage extends MessageWithAttributes {
 
-  // used by reflection
+  // used by ServiceMessageFactoryRegistry
   InternalErrorMessage() {
   }
 
@@ -38,8 +35,10 @@ public class InternalErrorMessage extends MessageWithAttributes {
     super(ServiceMessageTypes.INTERNAL_ERROR, createMap(cause));
   }
 
-  private static Map<String, String> createMap(@NotNull String cause) {
-    return Collections.singletonMap("cause", cause);
+  private static MessageAttributes createMap(@NotNull String cause) {
+    MessageAttributes res = new MessageAttributes(1);
+    res.set("cause", cause);
+    return res;
   }
 
   public String getCause() {
@@ -1,10 +1,13 @@
 package jetbrains.buildServer.messages.serviceMessages;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class MapSerializerUtil {
   private static final String STD_EX_SUFFIX =
@@ -47,24 +50,77 @@ public class MapSerializerUtil {
   public static Map<String, String> stringToProperties(@NotNull final String string,
                                                        @NotNull final EscapeInfoProvider escaper,
                                                        final boolean strictNameCheck) throws ParseException {
-    String currentString = string;
     final HashMap<String, String> result = new LinkedHashMap<String, String>();
-    while (currentString.length() > 0) {
-      final int nameSep = currentString.indexOf("=");
+    parseProperties(string, escaper, strictNameCheck, new PropertyConsumer() {
+      public void property(@NotNull final String name, @NotNull final String source, final int valueStart, final int valueEnd) {
+        result.put(name, unescapeStr(source, valueStart, valueEnd, escaper));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Receives properties found by {@link MapSerializerUtil#parseProperties}
+   */
+  interface PropertyConsumer {
+    /**
+     * @param name property name
+     * @param source parsed string
+     * @param valueStart start index of the escaped property value in the source string, inclusive
+     * @param valueEnd end index of the escaped property value in the source string, exclusive
+     */
+    void property(@NotNull String name, @NotNull String source, int valueStart, int valueEnd);
+  }
+
+  /**
+   * Splits string in a form of "name1='value' name2='value' ..." to properties without unescaping of the values.
+   * @see #stringToProperties(String, EscapeInfoProvider, boolean)
+   */
+  static void parseProperties(@NotNull final String string,
+                              @NotNull final EscapeInfoProvider escaper,
+                              final boolean strictNameCheck,
+                              @NotNull final PropertyConsumer consumer) throws ParseException {
+    parseProperties(string, 0, escaper, strictNameCheck, consumer);
+  }
+
+  /**
+   * Splits the part of the string starting from the specified index to properties without unescaping of the values.
+   * @see #parseProperties(String, EscapeInfoProvider, boolean, PropertyConsumer)
+   */
+  static void parseProperties(@NotNull final String string,
+                              final int fromIndex,
+                              @NotNull final EscapeInfoProvider escaper,
+                              final boolean strictNameCheck,
+                              @NotNull final PropertyConsumer consumer) throws ParseException {
+    parseProperties(string, fromIndex, escaper, strictNameCheck, null, consumer);
+  }
+
+  /**
+   * Splits the part of the string to properties taking property names from the dictionary when it is specified.
+   * @see #parseProperties(String, int, EscapeInfoProvider, boolean, PropertyConsumer)
+   */
+  static void parseProperties(@NotNull final String string,
+                              final int fromIndex,
+                              @NotNull final EscapeInfoProvider escaper,
+                              final boolean strictNameCheck,
+                              @Nullable final ServiceMessageDictionary dictionary,
+                              @NotNull final PropertyConsumer consumer) throws ParseException {
+    final int length = string.length();
+    int pos = fromIndex;
+    while (pos < length) {
+      final int nameSep = string.indexOf('=', pos);
       if (nameSep == -1) throw new ParseException("Property value not found" + "\n" + STD_EX_SUFFIX, 0);
-      final String name= currentString.substring(0, nameSep).trim();
+      final String name = substring(string, pos, nameSep, dictionary);
       checkPropName(name, strictNameCheck);
-      currentString = currentString.substring(nameSep + 1).trim();
+      pos = skipWhitespaces(string, nameSep + 1);
 
-      if (currentString.startsWith("'")) {
-        currentString = currentString.substring(1);
-        int endOfValue = indexOf(currentString, '\'', escaper);
+      if (pos < length && string.charAt(pos) == '\'') {
+        final int valueStart = pos + 1;
+        final int endOfValue = indexOf(string, valueStart, '\'', escaper);
         if (endOfValue >= 0) {
-          String escapedValue = currentString.substring(0, endOfValue);
-          currentString = currentString.substring(endOfValue + 1).trim();
-
-          result.put(name, unescapeStr(escapedValue, escaper));
+          pos = skipWhitespaces(string, endOfValue + 1);
 
+          consumer.property(name, string, valueStart, endOfValue);
         }
         else {
           throw new ParseException("Value should end with \"'\"" + "\n" + STD_EX_SUFFIX, 0);
@@ -74,8 +130,27 @@ public class MapSerializerUtil {
         throw new ParseException("Value should start with \"'\"" + "\n" + STD_EX_SUFFIX, 0);
       }
     }
+  }
 
-    return result;
+  /**
+   * @return trimmed part of the string, the same as <code>string.substring(from, to).trim()</code>
+   */
+  @NotNull
+  private static String substring(@NotNull final String string, int from, int to, @Nullable final ServiceMessageDictionary dictionary) {
+    while (from < to && string.charAt(from) <= ' ') from++;
+    while (to > from && string.charAt(to - 1) <= ' ') to--;
+    return dictionary == null ? string.substring(from, to) : dictionary.intern(string, from, to);
+  }
+
+  /**
+   * @return index of the first character starting from the specified one which would not be removed by {@link String#trim()}
+   */
+  private static int skipWhitespaces(@NotNull final String string, int from) {
+    final int length = string.length();
+    while (from < length && string.charAt(from) <= ' ') {
+      from++;
+    }
+    return from;
   }
 
   private static void checkPropName(final String name, boolean strict) throws ParseException {
@@ -90,9 +165,14 @@ public class MapSerializerUtil {
   }
 
   public static int indexOf(final String currentString, final char findWhat, final EscapeInfoProvider escaper) {
-    for (int i = 0; i < currentString.length(); i++) {
+    return indexOf(currentString, 0, findWhat, escaper);
+  }
+
+  static int indexOf(final String currentString, final int fromIndex, final char findWhat, final EscapeInfoProvider escaper) {
+    final char escapeCharacter = escaper.escapeCharacter();
+    for (int i = fromIndex; i < currentString.length(); i++) {
       final char currentChar = currentString.charAt(i);
-      if (escaper.escapeCharacter() == currentChar) {
+      if (escapeCharacter == currentChar) {
         i++;
       }
       else if (currentChar == findWhat) {
@@ -175,6 +255,33 @@ public class MapSerializerUtil {
     }
   };
 
+  /**
+   * Collects escape rules of the provider to lookup tables. Escaping and unescaping with the compiled provider give the same
+   * results as with the original one, but take a single pass over the string and do not copy strings which need no changes.
+   * {@link #STD_ESCAPER} is compiled automatically.
+   * @param p escape info provider which always returns the same results for the same characters
+   * @return compiled provider
+   */
+  @NotNull
+  public static EscapeInfoProvider compileEscaper(@NotNull final EscapeInfoProvider p) {
+    return CompiledEscaper.compile(p);
+  }
+
+  /**
+   * @return compiled rules of the provider if it is compiled or is {@link #STD_ESCAPER}, null otherwise
+   */
+  @Nullable
+  private static CompiledEscaper getCompiled(@NotNull final EscapeInfoProvider p) {
+    if (p instanceof CompiledEscaper) return (CompiledEscaper)p;
+    return p == STD_ESCAPER ? CompiledEscaper.STD : null;
+  }
+
+  @NotNull
+  private static EscapeInfoProvider getFastest(@NotNull final EscapeInfoProvider p) {
+    final CompiledEscaper compiled = getCompiled(p);
+    return compiled == null ? p : compiled;
+  }
+
   /**
    * Escapes characters specified by provider with '\' and specified character.
    * @param str initial string
@@ -183,6 +290,9 @@ public class MapSerializerUtil {
    */
   public static String escapeStr(final String str, EscapeInfoProvider p) {
     if (str == null) return null;
+    final CompiledEscaper compiled = getCompiled(p);
+    if (compiled != null) return compiled.escape(str);
+
     int finalCount = calcFinalEscapedStringCount(str, p);
 
     if (str.length() == finalCount) return str;
@@ -207,6 +317,55 @@ public class MapSerializerUtil {
     return new String(resultChars);
   }
 
+  /**
+   * Escapes the string in the same way as {@link #escapeStr(String, EscapeInfoProvider)} and appends the result to the target
+   * without creating the escaped string.
+   * @param target target
+   * @param str initial string
+   * @param p escape info provider.
+   * @throws IOException if the target fails
+   */
+  public static void escapeStr(@NotNull final Appendable target, @NotNull final String str, @NotNull final EscapeInfoProvider p) throws IOException {
+    final EscapeInfoProvider escaper = getFastest(p);
+    int start = 0;
+    for (int i = 0; i < str.length(); i++) {
+      final char escaped = escaper.escape(str.charAt(i));
+      if (escaped != 0) {
+        append(target, str, start, i);
+        target.append(escaper.escapeCharacter()).append(escaped);
+        start = i + 1;
+      }
+    }
+    append(target, str, start, str.length());
+  }
+
+  /**
+   * Appends property in a form of "name='value'" with escaped name and value to the target, null value is written as "null".
+   */
+  static void writeProperty(@NotNull final Appendable target,
+                            @NotNull final String name,
+                            @Nullable final String value,
+                            @NotNull final EscapeInfoProvider p) throws IOException {
+    escapeStr(target, name, p);
+    target.append("='");
+    if (value == null) {
+      target.append("null");
+    } else {
+      escapeStr(target, value, p);
+    }
+    target.append('\'');
+  }
+
+  private static void append(@NotNull final Appendable target, @NotNull final String str, final int from, final int to) throws IOException {
+    if (from == to) return;
+    if (target instanceof Writer) {
+      // Writer.append(CharSequence, int, int) copies the part to a new string
+      ((Writer)target).write(str, from, to - from);
+    } else {
+      target.append(str, from, to);
+    }
+  }
+
   private static int calcFinalEscapedStringCount(final String name, final EscapeInfoProvider p) {
     int result = 0;
     for (int i = 0; i < name.length(); i++) {
@@ -231,16 +390,46 @@ public class MapSerializerUtil {
 
   public static String unescapeStr(final String str, EscapeInfoProvider p) {
     if (str == null) return null;
-    int finalCount = calcFinalUnescapedStringCount(str, p);
+    return unescapeStr(str, 0, str.length(), p);
+  }
 
-    int len = str.length();
-    if (len == finalCount) return str;
+  /**
+   * Unescapes the specified part of the string, the same as <code>unescapeStr(str.substring(from, to), p)</code>
+   * but without copying of the part.
+   * @param str initial string
+   * @param from start index of the part, inclusive
+   * @param to end index of the part, exclusive
+   * @param p escape info provider.
+   * @return unescaped string.
+   */
+  static String unescapeStr(@NotNull final String str, final int from, final int to, EscapeInfoProvider p) {
+    return unescapeStr(str, from, to, p, null);
+  }
+
+  /**
+   * Unescapes the specified part of the string and takes the result from the dictionary when it is specified.
+   * @see #unescapeStr(String, int, int, EscapeInfoProvider)
+   */
+  static String unescapeStr(@NotNull final String str,
+                            final int from,
+                            final int to,
+                            EscapeInfoProvider p,
+                            @Nullable final ServiceMessageDictionary dictionary) {
+    final CompiledEscaper compiled = getCompiled(p);
+    if (compiled != null) {
+      if (dictionary == null) return compiled.unescape(str, from, to);
+      return compiled.hasEscapes(str, from, to) ? dictionary.intern(compiled.unescape(str, from, to)) : dictionary.intern(str, from, to);
+    }
+
+    int finalCount = calcFinalUnescapedStringCount(str, from, to, p);
+
+    if (to - from == finalCount) return dictionary == null ? str.substring(from, to) : dictionary.intern(str, from, to);
 
     char[] resultChars = new char[finalCount];
     int resultPos = 0;
-    for (int i = 0; i < len; i++) {
+    for (int i = from; i < to; i++) {
       char c = str.charAt(i);
-      if (c == p.escapeCharacter() && i < len - 1) {
+      if (c == p.escapeCharacter() && i < to - 1) {
         char nextChar = str.charAt(i + 1);
         final char unescaped = p.unescape(nextChar);
         if (unescaped != 0) {
@@ -254,19 +443,49 @@ public class MapSerializerUtil {
     }
 
     if (resultPos != finalCount) {
-      throw new RuntimeException("Incorrect unescaping for '" + str + "'");
+      throw new RuntimeException("Incorrect unescaping for '" + str.substring(from, to) + "'");
     }
 
-    return new String(resultChars);
+    final String result = new String(resultChars);
+    return dictionary == null ? result : dictionary.intern(result);
+
+  }
+
+  /**
+   * Checks whether unescaped part of the string is equal to the expected string without unescaping it.
+   * @param str initial string
+   * @param from start index of the part, inclusive
+   * @param to end index of the part, exclusive
+   * @param expected expected unescaped string
+   * @param p escape info provider.
+   * @return true if <code>unescapeStr(str.substring(from, to), p).equals(expected)</code>
+   */
+  static boolean unescapedEquals(@NotNull final String str, final int from, final int to, @NotNull final String expected, EscapeInfoProvider p) {
+    p = getFastest(p);
+    final int expectedLength = expected.length();
+    int expectedPos = 0;
+    for (int i = from; i < to; i++) {
+      char c = str.charAt(i);
+      if (c == p.escapeCharacter() && i < to - 1) {
+        final char unescaped = p.unescape(str.charAt(i + 1));
+        if (unescaped != 0) {
+          c = unescaped;
+          //noinspection AssignmentToForLoopParameter
+          i += 1;
+        }
+      }
+
+      if (expectedPos == expectedLength || expected.charAt(expectedPos++) != c) return false;
+    }
 
+    return expectedPos == expectedLength;
   }
 
-  private static int calcFinalUnescapedStringCount(final String name, final EscapeInfoProvider p) {
+  private static int calcFinalUnescapedStringCount(final String name, final int from, final int to, final EscapeInfoProvider p) {
     int result = 0;
-    int len = name.length();
-    for (int i = 0; i < len; i++) {
+    for (int i = from; i < to; i++) {
       char c = name.charAt(i);
-      if (c == p.escapeCharacter() && i < len - 1) {
+      if (c == p.escapeCharacter() && i < to - 1) {
         char nextChar = name.charAt(i + 1);
         if (p.unescape(nextChar) != 0) {
           //noinspection AssignmentToForLoopParameter
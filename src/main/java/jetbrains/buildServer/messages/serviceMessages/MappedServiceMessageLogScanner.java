@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Scans build log file in UTF-8 for service messages. The file is memory-mapped in windows of the fixed size,
+ * service messages crossing window boundaries are handled by mapping the next window from the start of the unfinished message.
+ * Regular text is passed to the callback as a view of the mapped window, it is not copied to the heap.
+ * Offsets passed to the callback are offsets in the file, they can be used to scan the file again from the specific message.
+ * <br/>
+ * Maximum length of the service message is a half of the window size or
+ * {@link StreamingServiceMessageParser#DEFAULT_MAX_MESSAGE_LENGTH} whichever is smaller, longer messages are treated as regular text.
+ */
+public class MappedServiceMessageLogScanner {
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private static final int MIN_WINDOW_SIZE = 1024;
+
+  private final int myWindowSize;
+
+  public MappedServiceMessageLogScanner() {
+    this(DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param windowSize size of the mapped window in bytes
+   */
+  public MappedServiceMessageLogScanner(final int windowSize) {
+    if (windowSize < MIN_WINDOW_SIZE) {
+      throw new IllegalArgumentException("Window size should be at least " + MIN_WINDOW_SIZE + ": " + windowSize);
+    }
+    myWindowSize = windowSize;
+  }
+
+  /**
+   * Scans the whole file with the default window size.
+   * @param file log file
+   * @param callback callback
+   * @throws IOException if the file cannot be read
+   */
+  public static void scanFile(@NotNull final File file, @NotNull final ServiceMessageByteParserCallback callback) throws IOException {
+    new MappedServiceMessageLogScanner().scan(file, 0, callback);
+  }
+
+  /**
+   * Scans the file starting from the specified offset.
+   * @param file log file
+   * @param fromOffset offset to start from, should not point into the middle of the service message or UTF-8 sequence
+   * @param callback callback
+   * @throws IOException if the file cannot be read
+   */
+  public void scan(@NotNull final File file, final long fromOffset, @NotNull final ServiceMessageByteParserCallback callback) throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      scan(randomAccessFile.getChannel(), fromOffset, callback);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Scans the channel starting from the specified offset till the current size of the channel. Channel is not closed.
+   * @param channel file channel opened for reading
+   * @param fromOffset offset to start from, should not point into the middle of the service message or UTF-8 sequence
+   * @param callback callback
+   * @throws IOException if the channel cannot be read
+   */
+  public void scan(@NotNull final FileChannel channel, final long fromOffset, @NotNull final ServiceMessageByteParserCallback callback) throws IOException {
+    final ServiceMessageByteParser parser = new ServiceMessageByteParser(callback, Math.min(StreamingServiceMessageParser.DEFAULT_MAX_MESSAGE_LENGTH, myWindowSize / 2));
+    final long size = channel.size();
+
+    long position = fromOffset;
+    while (position < size) {
+      final int windowSize = (int) Math.min(myWindowSize, size - position);
+      final boolean endOfInput = position + windowSize == size;
+      final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+      parser.parse(window, position, endOfInput);
+      // unfinished tail is never longer than the maximum message length, so something is always consumed
+      position += window.position();
+    }
+  }
+}
@@ -16,13 +16,11 @@
 
 package jetbrains.buildServer.messages.serviceMessages;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class Message extends MessageWithAttributes {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   Message() {
   }
 
@@ -30,12 +28,12 @@ public class Message extends MessageWithAttributes {
     super(ServiceMessageTypes.MESSAGE, createMap(text, status, errDetails));
   }
 
-  private static Map<String, String> createMap(@NotNull String text, @NotNull String status, @Nullable String errDetails) {
-    Map<String, String> res = new LinkedHashMap<String, String>();
-    res.put("text", text);
-    res.put("status", status);
+  private static MessageAttributes createMap(@NotNull String text, @NotNull String status, @Nullable String errDetails) {
+    MessageAttributes res = new MessageAttributes(errDetails == null ? 2 : 3);
+    res.set("text", text);
+    res.set("status", status);
     if (errDetails != null) {
-      res.put("errorDetails", errDetails);
+      res.set("errorDetails", errDetails);
     }
     return res;
   }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.text.ParseException;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Attributes of the service message kept in a single array of names and values in insertion order.
+ * Order of attributes and handling of duplicate names is the same as in {@link java.util.LinkedHashMap}.
+ * <br/>
+ * Attributes parsed in lazy mode keep offsets of the escaped values in the message text and unescape each value
+ * on the first access. Concurrent reads are safe: a value can be unescaped twice, but the results are equal.
+ * <br/>
+ * The map is unmodifiable for the users of {@link ServiceMessage#getAttributes()}, the message changes it with
+ * package-private methods.
+ */
+final class MessageAttributes extends AbstractMap<String, String> implements MapSerializerUtil.PropertyConsumer {
+  private static final String[] NO_DATA = new String[0];
+
+  /** names at even indices, values at odd indices, value is null if it is null or is not unescaped yet */
+  @NotNull private String[] myData;
+  private int mySize;
+  /** text with escaped values, null if all values are unescaped */
+  @Nullable private String mySource;
+  /** start and end of the escaped value in {@link #mySource} for every attribute, start is -1 if the value is not parsed */
+  @Nullable private int[] myBounds;
+  @Nullable private Set<Entry<String, String>> myEntrySet;
+
+  MessageAttributes() {
+    myData = NO_DATA;
+  }
+
+  MessageAttributes(final int capacity) {
+    myData = capacity == 0 ? NO_DATA : new String[2 * capacity];
+  }
+
+  /**
+   * Replaces the attributes with the ones parsed from the specified text, the arrays are reused.
+   * @param source text with attributes
+   * @param fromIndex index of the first attribute in the text
+   * @param lazy true to unescape values on demand, false to unescape all values now
+   * @param dictionary dictionary for names and, unless values are unescaped on demand, for values
+   * @throws ParseException if the attributes cannot be parsed
+   */
+  void parse(@NotNull final String source,
+             final int fromIndex,
+             final boolean lazy,
+             @Nullable final ServiceMessageDictionary dictionary) throws ParseException {
+    reset();
+    mySource = source;
+    MapSerializerUtil.parseProperties(source, fromIndex, MapSerializerUtil.STD_ESCAPER, false, dictionary, this);
+    if (!lazy) unescapeAll(dictionary);
+  }
+
+  public void property(@NotNull final String name, @NotNull final String source, final int valueStart, final int valueEnd) {
+    final int index = setValue(name, null);
+    if (myBounds == null) {
+      myBounds = new int[myData.length];
+    }
+    myBounds[2 * index] = valueStart;
+    myBounds[2 * index + 1] = valueEnd;
+  }
+
+  /**
+   * @return previous value of the attribute or null if there was no attribute with this name
+   */
+  @Nullable
+  String set(@NotNull final String name, @Nullable final String value) {
+    final int index = indexOf(name);
+    final String previous = index == -1 ? null : getValue(index);
+    setValue(name, value);
+    return previous;
+  }
+
+  void setAll(@NotNull final Map<String, String> attributes) {
+    ensureCapacity(mySize + attributes.size());
+    for (Entry<String, String> entry : attributes.entrySet()) {
+      setValue(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Nullable
+  String removeAttribute(@NotNull final String name) {
+    final int index = indexOf(name);
+    if (index == -1) return null;
+
+    final String value = getValue(index);
+    final int tail = mySize - index - 1;
+    System.arraycopy(myData, 2 * index + 2, myData, 2 * index, 2 * tail);
+    if (myBounds != null) System.arraycopy(myBounds, 2 * index + 2, myBounds, 2 * index, 2 * tail);
+    mySize--;
+    myData[2 * mySize] = null;
+    myData[2 * mySize + 1] = null;
+    return value;
+  }
+
+  void reset() {
+    Arrays.fill(myData, 0, 2 * mySize, null);
+    mySize = 0;
+    mySource = null;
+  }
+
+  @NotNull
+  String getName(final int index) {
+    return myData[2 * index];
+  }
+
+  @Nullable
+  String getAttribute(@NotNull final String name) {
+    final int index = indexOf(name);
+    return index == -1 ? null : getValue(index);
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return key instanceof String && indexOf((String)key) != -1;
+  }
+
+  @Override
+  public String get(final Object key) {
+    return key instanceof String ? getAttribute((String)key) : null;
+  }
+
+  @NotNull
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    Set<Entry<String, String>> entrySet = myEntrySet;
+    if (entrySet == null) {
+      entrySet = new AbstractSet<Entry<String, String>>() {
+        @NotNull
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return mySize;
+        }
+      };
+      myEntrySet = entrySet;
+    }
+    return entrySet;
+  }
+
+  private int setValue(@NotNull final String name, @Nullable final String value) {
+    int index = indexOf(name);
+    if (index == -1) {
+      ensureCapacity(mySize + 1);
+      index = mySize++;
+      myData[2 * index] = name;
+    }
+    myData[2 * index + 1] = value;
+    if (myBounds != null) myBounds[2 * index] = -1;
+    return index;
+  }
+
+  @Nullable
+  String getValue(final int index) {
+    return getValue(index, null);
+  }
+
+  @Nullable
+  private String getValue(final int index, @Nullable final ServiceMessageDictionary dictionary) {
+    String value = myData[2 * index + 1];
+    if (value == null && isEscaped(index)) {
+      //noinspection ConstantConditions
+      value = MapSerializerUtil.unescapeStr(mySource, myBounds[2 * index], myBounds[2 * index + 1], MapSerializerUtil.STD_ESCAPER, dictionary);
+      myData[2 * index + 1] = value;
+    }
+    return value;
+  }
+
+  private boolean isEscaped(final int index) {
+    return myBounds != null && myBounds[2 * index] >= 0;
+  }
+
+  private void unescapeAll(@Nullable final ServiceMessageDictionary dictionary) {
+    for (int i = 0; i < mySize; i++) {
+      getValue(i, dictionary);
+    }
+    mySource = null;
+    myBounds = null;
+  }
+
+  private int indexOf(@NotNull final String name) {
+    for (int i = 0; i < mySize; i++) {
+      if (myData[2 * i].equals(name)) return i;
+    }
+    return -1;
+  }
+
+  private void ensureCapacity(final int size) {
+    if (2 * size <= myData.length) return;
+    final String[] data = new String[2 * Math.max(size, mySize == 0 ? size : 2 * mySize)];
+    System.arraycopy(myData, 0, data, 0, 2 * mySize);
+    myData = data;
+    if (myBounds != null) {
+      final int[] bounds = new int[data.length];
+      System.arraycopy(myBounds, 0, bounds, 0, 2 * mySize);
+      myBounds = bounds;
+    }
+  }
+
+  private class EntryIterator implements Iterator<Entry<String, String>> {
+    private int myIndex;
+
+    public boolean hasNext() {
+      return myIndex < mySize;
+    }
+
+    public Entry<String, String> next() {
+      if (myIndex >= mySize) throw new NoSuchElementException();
+      final int index = myIndex++;
+      return new Attribute(myData[2 * index], getValue(index));
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class Attribute implements Entry<String, String> {
+    @NotNull private final String myName;
+    @Nullable private final String myValue;
+
+    private Attribute(@NotNull final String name, @Nullable final String value) {
+      myName = name;
+      myValue = value;
+    }
+
+    public String getKey() {
+      return myName;
+    }
+
+    public String getValue() {
+      return myValue;
+    }
+
+    public String setValue(final String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Entry)) return false;
+      final Entry<?, ?> e = (Entry<?, ?>)o;
+      return myName.equals(e.getKey()) && (myValue == null ? e.getValue() == null : myValue.equals(e.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      return myName.hashCode() ^ (myValue == null ? 0 : myValue.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return myName + "=" + myValue;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Finds the closing "]" of the service messages. Escape character makes the next character a part of the text,
+ * so "|]" does not end the message while "||]" does. Quotes are not tracked: "]" inside attribute values
+ * has to be escaped, so the first not escaped "]" always ends the message.
+ * <br/>
+ * Scanner remembers how far the text was scanned. Every scan starts right after "##teamcity[" where the escape
+ * state is always the same, so the next message start before the remembered position continues from it instead of
+ * scanning the same characters again, and parsing of the text with many unfinished messages stays linear.
+ * Message starts should be passed in increasing order for the same text, use {@link #shift(int)} if the
+ * beginning of the text is removed.
+ */
+final class MessageEndScanner {
+  private static final char ESCAPE_CHARACTER = MapSerializerUtil.STD_ESCAPER.escapeCharacter();
+  private static final char SERVICE_MESSAGE_END = ']';
+
+  /** index of the first not scanned character or of the found end, -1 if nothing was scanned */
+  private int myScanPos = -1;
+  /** true if the character at {@link #myScanPos} is escaped */
+  private boolean myEscaped;
+  private boolean myEndFound;
+
+  /**
+   * @param text text to scan
+   * @param contentStart index right after "##teamcity["
+   * @param limit index to stop scanning at, exclusive
+   * @return index after the closing "]" or -1 if there is no closing "]" before the limit
+   */
+  int findEnd(@NotNull final CharSequence text, final int contentStart, final int limit) {
+    int pos = contentStart;
+    boolean escaped = false;
+    if (myScanPos >= contentStart) {
+      if (myEndFound) return myScanPos < limit ? myScanPos + 1 : -1;
+      pos = myScanPos;
+      escaped = myEscaped;
+    }
+
+    for (; pos < limit; pos++) {
+      final char c = text.charAt(pos);
+      if (escaped) {
+        escaped = false;
+      } else if (c == ESCAPE_CHARACTER) {
+        escaped = true;
+      } else if (c == SERVICE_MESSAGE_END) {
+        myScanPos = pos;
+        myEscaped = false;
+        myEndFound = true;
+        return pos + 1;
+      }
+    }
+
+    myScanPos = pos;
+    myEscaped = escaped;
+    myEndFound = false;
+    return -1;
+  }
+
+  /**
+   * Updates remembered position after removal of the specified number of characters from the beginning of the text.
+   */
+  void shift(final int removed) {
+    myScanPos -= removed;
+    if (myScanPos < 0) reset();
+  }
+
+  void reset() {
+    myScanPos = -1;
+    myEscaped = false;
+    myEndFound = false;
+  }
+}
@@ -26,4 +26,8 @@ public abstract class MessageWithAttributes extends ServiceMessage {
   protected MessageWithAttributes(@NotNull final String messageName, @NotNull final Map<String, String> attributes) {
     super(messageName, attributes);
   }
+
+  MessageWithAttributes(@NotNull final String messageName, @NotNull final MessageAttributes attributes) {
+    super(messageName, attributes);
+  }
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+/**
+ * What to do with the service message when the bounded queue of the background thread is full,
+ * see {@link ServiceMessageWriter} and {@link ServiceMessageRingBuffer}.
+ */
+public enum OverflowPolicy {
+  /** wait until there is space in the queue */
+  BLOCK,
+  /** discard the message, the number of discarded messages is reported by the queue owner */
+  DROP
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parses large mixed text in parallel. The text is split to chunks at positions which cannot be inside
+ * a service message (after a newline in the regular text or at the start of a message), the chunks are parsed
+ * by the tasks submitted to the specified executor and the results are passed to the callback in the calling thread.
+ * <br/>
+ * In ordered mode (default) the callback receives the same notifications as with {@link ServiceMessage#parse(String, ServiceMessageParserCallback)}.
+ * In unordered mode results of every chunk are passed as soon as the chunk is parsed, and regular text
+ * split between chunks is reported in several pieces.
+ * <br/>
+ * Parser can be used by several threads at once if it is not reconfigured.
+ */
+public class ParallelServiceMessageParser {
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  /** maximum number of the chunks submitted to the executor but not yet passed to the callback */
+  private static final int MAX_PENDING_CHUNKS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final ServiceMessageParser myParser;
+  private int myChunkSize = DEFAULT_CHUNK_SIZE;
+  private boolean myOrdered = true;
+
+  /**
+   * @param executor executor to parse the chunks with, e.g. a thread pool with a thread per core
+   */
+  public ParallelServiceMessageParser(@NotNull final ExecutorService executor) {
+    this(executor, new ServiceMessageParser());
+  }
+
+  /**
+   * @param executor executor to parse the chunks with, e.g. a thread pool with a thread per core
+   * @param parser parser of the service messages found in the text
+   */
+  public ParallelServiceMessageParser(@NotNull final ExecutorService executor, @NotNull final ServiceMessageParser parser) {
+    myExecutor = executor;
+    myParser = parser;
+  }
+
+  public int getChunkSize() {
+    return myChunkSize;
+  }
+
+  /**
+   * @param chunkSize approximate number of characters parsed by a single task
+   */
+  public void setChunkSize(final int chunkSize) {
+    if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size should be positive: " + chunkSize);
+    myChunkSize = chunkSize;
+  }
+
+  public boolean isOrdered() {
+    return myOrdered;
+  }
+
+  /**
+   * @param ordered true to pass the results to the callback in the order of the text, false to pass results of every
+   * chunk as soon as it is parsed
+   */
+  public void setOrdered(final boolean ordered) {
+    myOrdered = ordered;
+  }
+
+  /**
+   * Parses mixed text and notifies the callback in the calling thread.
+   * @param mixedText text with service messages
+   * @param parserCallback callback
+   * @throws InterruptedException if the calling thread was interrupted while waiting for the chunks, the remaining chunks are cancelled
+   */
+  public void parse(@NotNull final String mixedText, @NotNull final ServiceMessageParserCallback parserCallback) throws InterruptedException {
+    final boolean ordered = myOrdered;
+    final ChunkIterator chunks = new ChunkIterator(mixedText, myChunkSize, myParser.getMaxMessageLength());
+    final LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+    // in ordered mode chunks are taken in the submission order, a completion queue would keep every finished chunk
+    final CompletionService<Chunk> completionService = ordered ? null : new ExecutorCompletionService<Chunk>(myExecutor);
+
+    // start of the regular text split between chunks which is not reported yet, the text is taken
+    // from the parsed text once when it ends, so a long regular text is not copied for every chunk
+    int pendingTextStart = -1;
+    try {
+      while (true) {
+        while (pending.size() < MAX_PENDING_CHUNKS && chunks.hasNext()) {
+          final Chunk chunk = chunks.next(myParser);
+          pending.add(completionService == null ? myExecutor.submit(chunk) : completionService.submit(chunk));
+        }
+        if (pending.isEmpty()) break;
+
+        final Future<Chunk> future;
+        if (completionService == null) {
+          future = pending.removeFirst();
+        } else {
+          future = completionService.take();
+          pending.remove(future);
+        }
+        pendingTextStart = getResult(future).replay(parserCallback, ordered ? pendingTextStart : -1, ordered);
+      }
+    } finally {
+      for (Future<Chunk> future : pending) {
+        future.cancel(true);
+      }
+    }
+
+    if (pendingTextStart != -1) {
+      parserCallback.regularText(mixedText.substring(pendingTextStart));
+    }
+  }
+
+  @NotNull
+  private static Chunk getResult(@NotNull final Future<Chunk> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Splits the text to chunks. Only message boundaries are searched for, the messages are not parsed.
+   */
+  private static class ChunkIterator {
+    @NotNull private final String myText;
+    private final int myChunkSize;
+    private final int myMaxMessageLength;
+    @NotNull private final MessageEndScanner myScanner = new MessageEndScanner();
+    /** position to search for the next message start */
+    private int myPos;
+    private int myChunkStart;
+    private boolean myRestIsRegular;
+
+    private ChunkIterator(@NotNull final String text, final int chunkSize, final int maxMessageLength) {
+      myText = text;
+      myChunkSize = chunkSize;
+      myMaxMessageLength = maxMessageLength;
+    }
+
+    public boolean hasNext() {
+      return myChunkStart < myText.length();
+    }
+
+    @NotNull
+    public Chunk next(@NotNull final ServiceMessageParser parser) {
+      final int length = myText.length();
+      final int target = (int)Math.min((long)myChunkStart + myChunkSize, length);
+
+      int chunkEnd = -1;
+      boolean splitsRegularText = false;
+      while (chunkEnd == -1) {
+        final int start = myRestIsRegular ? -1 : myText.indexOf(ServiceMessage.SERVICE_MESSAGE_START, myPos);
+        if (start == -1) {
+          // no more messages, the rest of the text is reported as a single regular text
+          myRestIsRegular = true;
+          final int newLine = myText.indexOf('\n', target);
+          splitsRegularText = newLine != -1 && newLine + 1 < length;
+          chunkEnd = splitsRegularText ? newLine + 1 : length;
+          break;
+        }
+
+        final int limit = ServiceMessage.getEndSearchLimit(myText, start, myMaxMessageLength);
+        final int end = myScanner.findEnd(myText, start + ServiceMessage.SERVICE_MESSAGE_START.length(), limit);
+        if (end == -1) {
+          if (limit == length) {
+            myRestIsRegular = true;
+          } else {
+            myPos = start + 1;
+          }
+        } else if (start >= target) {
+          // the text between the target and the message start is regular
+          final int newLine = myText.indexOf('\n', target);
+          splitsRegularText = newLine != -1 && newLine + 1 < start;
+          chunkEnd = splitsRegularText ? newLine + 1 : start;
+        } else {
+          myPos = end;
+          if (end >= target) chunkEnd = end;
+        }
+      }
+
+      final Chunk chunk = new Chunk(parser, myText, myChunkStart, chunkEnd, splitsRegularText);
+      myChunkStart = chunkEnd;
+      myPos = Math.max(myPos, chunkEnd);
+      return chunk;
+    }
+  }
+
+  /**
+   * Parses part of the text and keeps parsed results until they are passed to the callback.
+   */
+  private static class Chunk implements Callable<Chunk>, ServiceMessageParserCallback {
+    @NotNull private final ServiceMessageParser myParser;
+    @NotNull private final String myText;
+    private final int myStart;
+    private final int myEnd;
+    /** true if the regular text at the end of the chunk continues in the next chunk */
+    private final boolean mySplitsRegularText;
+    /** regular text strings, parsed messages and parse failures */
+    @NotNull private final List<Object> myResults = new ArrayList<Object>();
+
+    private Chunk(@NotNull final ServiceMessageParser parser,
+                  @NotNull final String text,
+                  final int start,
+                  final int end,
+                  final boolean splitsRegularText) {
+      myParser = parser;
+      myText = text;
+      myStart = start;
+      myEnd = end;
+      mySplitsRegularText = splitsRegularText;
+    }
+
+    public Chunk call() {
+      ServiceMessage.parse(myText, myStart, myEnd, this, myParser, null);
+      return this;
+    }
+
+    public void regularText(@NotNull final String text) {
+      myResults.add(text);
+    }
+
+    public void serviceMessage(@NotNull final ServiceMessage message) {
+      myResults.add(message);
+    }
+
+    public void parseException(@NotNull final ParseException parseException, @NotNull final String text) {
+      myResults.add(new ParseFailure(parseException, text));
+    }
+
+    /**
+     * @param callback callback to notify
+     * @param pendingTextStart start of the regular text from the end of the previous chunks which should be joined with
+     *                         the regular text at the start of this chunk, -1 if there is no such text
+     * @param joinRegularText true if the regular text split between chunks should be joined
+     * @return start of the regular text at the end of this chunk which was not passed to the callback, -1 if there is no such text
+     */
+    int replay(@NotNull final ServiceMessageParserCallback callback, int pendingTextStart, final boolean joinRegularText) {
+      final int size = myResults.size();
+      for (int i = 0; i < size; i++) {
+        final Object result = myResults.get(i);
+        if (result instanceof String) {
+          String text = (String)result;
+          if (joinRegularText && mySplitsRegularText && i == size - 1) {
+            // the regular text at the end of the chunk continues in the next chunk
+            return pendingTextStart != -1 ? pendingTextStart : myEnd - text.length();
+          }
+          if (pendingTextStart != -1) {
+            // the regular text at the start of the chunk continues the text of the previous chunks
+            text = myText.substring(pendingTextStart, myStart + text.length());
+            pendingTextStart = -1;
+          }
+          callback.regularText(text);
+          continue;
+        }
+
+        if (pendingTextStart != -1) {
+          callback.regularText(myText.substring(pendingTextStart, myStart));
+          pendingTextStart = -1;
+        }
+        if (result instanceof ServiceMessage) {
+          callback.serviceMessage((ServiceMessage)result);
+        } else {
+          final ParseFailure failure = (ParseFailure)result;
+          callback.parseException(failure.myException, failure.myText);
+        }
+      }
+      return pendingTextStart;
+    }
+  }
+
+  private static class ParseFailure {
+    @NotNull private final ParseException myException;
+    @NotNull private final String myText;
+
+    private ParseFailure(@NotNull final ParseException exception, @NotNull final String text) {
+      myException = exception;
+      myText = text;
+    }
+  }
+}
@@ -19,7 +19,7 @@ package jetbrains.buildServer.messages.serviceMessages;
 import org.jetbrains.annotations.NotNull;
 
 public class ProgressStart extends ProgressMessage {
-  // used by reflection
+  // used by ServiceMessageFactoryRegistry
   public ProgressStart() {
   }
 
@@ -19,7 +19,7 @@ package jetbrains.buildServer.messages.serviceMessages;
 import org.jetbrains.annotations.NotNull;
 
 public class PublishArtifacts extends ServiceMessage {
-  // used by reflection
+  // used by ServiceMessageFactoryRegistry
   PublishArtifacts() {
   }
 
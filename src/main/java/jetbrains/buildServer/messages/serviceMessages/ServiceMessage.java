@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.messages.serviceMessages;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -44,69 +45,63 @@ public class ServiceMessage {
   public static final String TAGS_ATRRIBUTE = RESERVED_ATTRIBUTE_PREFIX + "tags";
 
 
-  @NotNull private static final String SERVICE_MESSAGE_END = "]";
+  @NotNull static final String SERVICE_MESSAGE_END = "]";
+
+  @NotNull private static final ServiceMessageParser DEFAULT_PARSER = new ServiceMessageParser();
 
   @NotNull private static final String FORMAT_WITH_TZ = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
   @NotNull private static final String FORMAT_WITHOUT_TZ = "yyyy-MM-dd'T'HH:mm:ss.SSS";
 
   private static final int FORMAT_WITHOUT_TZ_LEN = FORMAT_WITHOUT_TZ.replace("'", "").length();
 
-  @NotNull private static final Map<String, Class<? extends ServiceMessage>> SERVICE_MESSAGE_CLASSES = new HashMap<String, Class<? extends ServiceMessage>>();
 
   @NotNull private String myMessageName;
-  @NotNull private final Map<String, String> myAttributes = new LinkedHashMap<String, String>();
+  @NotNull private final MessageAttributes myAttributes;
   @Nullable private String myArgument;
   @Nullable private Timestamp myCreationTimestamp;
   @Nullable private String myFlowId;
   @NotNull private List<String> myTags = Collections.emptyList();
 
-  static {
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.PROGRESS_MESSAGE, ProgressMessage.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.PROGRESS_START, ProgressStart.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.PROGRESS_FINISH, ProgressFinish.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.PUBLISH_ARTIFACTS, PublishArtifacts.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_SUITE_STARTED, TestSuiteStarted.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_SUITE_FINISHED, TestSuiteFinished.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_STARTED, TestStarted.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_FAILED, TestFailed.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_FINISHED, TestFinished.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_IGNORED, TestIgnored.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_STD_OUT, TestStdOut.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_STD_ERR, TestStdErr.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.BUILD_STATUS, BuildStatus.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.BUILD_NUMBER, BuildNumber.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.BUILD_STATISTIC_VALUE, BuildStatisticValue.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.TEST_NAVIGATION_INFO, TestNavigationInfo.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.BLOCK_OPENED, BlockOpened.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.BLOCK_CLOSED, BlockClosed.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.COMPILATION_STARTED, CompilationStarted.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.COMPILATION_FINISHED, CompilationFinished.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.MESSAGE, Message.class);
-    SERVICE_MESSAGE_CLASSES.put(ServiceMessageTypes.INTERNAL_ERROR, InternalErrorMessage.class);
-  }
-
-  ServiceMessage() {
+  protected ServiceMessage() {
+    myAttributes = new MessageAttributes();
   }
 
   protected ServiceMessage(@NotNull final String messageName) {
     myMessageName = messageName;
+    myAttributes = new MessageAttributes();
   }
 
   protected ServiceMessage(@NotNull final String messageName, final String argument) {
     myMessageName = messageName;
     myArgument = argument;
+    myAttributes = new MessageAttributes();
   }
 
   protected ServiceMessage(@NotNull final String messageName,
                            @NotNull final Map<String, String> attributes) {
+    this(messageName, copyAttributes(attributes));
+  }
+
+  /**
+   * Creates message which takes ownership of the specified attributes.
+   */
+  ServiceMessage(@NotNull final String messageName, @NotNull final MessageAttributes attributes) {
     myMessageName = messageName;
+    myAttributes = attributes;
     try {
-      populateAttributes(attributes);
+      populateAttributes();
     } catch (ParseException e) {
       throw new IllegalArgumentException(e);
     }
   }
 
+  @NotNull
+  private static MessageAttributes copyAttributes(@NotNull final Map<String, String> attributes) {
+    final MessageAttributes result = new MessageAttributes(attributes.size());
+    result.setAll(attributes);
+    return result;
+  }
+
   /** If message is text message according to the pattern ##teamcity[key...], return parsed message. Otherwise, return null
    *  Throws ParseException if message is a service message but its arguments cannot be parsed.
    * @param text text to parse
@@ -115,8 +110,15 @@ public class ServiceMessage {
    **/
   @Nullable
   public static ServiceMessage parse(@NotNull final String text) throws ParseException {
+    return parse(text, DEFAULT_PARSER, null);
+  }
+
+  @Nullable
+  static ServiceMessage parse(@NotNull final String text,
+                              @NotNull final ServiceMessageParser parser,
+                              @Nullable final ServiceMessageHolder holder) throws ParseException {
     if (text.startsWith(SERVICE_MESSAGE_START) && text.endsWith(SERVICE_MESSAGE_END)) {
-      return doParse(text.substring(SERVICE_MESSAGE_START.length(), text.length() - SERVICE_MESSAGE_END.length()).trim());
+      return doParse(text.substring(SERVICE_MESSAGE_START.length(), text.length() - SERVICE_MESSAGE_END.length()).trim(), parser, holder);
     }
     return null;
   }
@@ -129,19 +131,89 @@ public class ServiceMessage {
    * @since 6.0
    */
   public static void parse(@NotNull String mixedText, @NotNull ServiceMessageParserCallback parserCallback) {
-    for (Pair<String, Boolean> parsed: splitTextToServiceMessagesAndRegularText(mixedText)) {
-      if (parsed.getSecond()) {
-        try {
-          parserCallback.serviceMessage(ServiceMessage.doParse(parsed.getFirst()));
-        } catch (ParseException e) {
-          parserCallback.parseException(e, appendPrefixAndSuffix(parsed.getFirst()));
-        }
-      } else {
-        parserCallback.regularText(parsed.getFirst());
+    parse(mixedText, parserCallback, DEFAULT_PARSER, null);
+  }
+
+  /**
+   * Accepts mixed text (text that can contain service messages inside) and parser callback.
+   * Notifies parser callback on any occurence of the regular text or of the service message accepted by the filter.
+   * Service messages not accepted by the filter are not parsed.
+   * @param mixedText text with service messages
+   * @param filter service message filter
+   * @param parserCallback callback
+   */
+  public static void parse(@NotNull final String mixedText,
+                           @NotNull final ServiceMessageFilter filter,
+                           @NotNull final ServiceMessageParserCallback parserCallback) {
+    final ServiceMessageParser parser = new ServiceMessageParser();
+    parser.setFilter(filter);
+    parse(mixedText, parserCallback, parser, null);
+  }
+
+  static void parse(@NotNull final String mixedText,
+                    @NotNull final ServiceMessageParserCallback parserCallback,
+                    @NotNull final ServiceMessageParser parser,
+                    @Nullable final ServiceMessageHolder holder) {
+    parse(mixedText, 0, mixedText.length(), parserCallback, parser, holder);
+  }
+
+  /**
+   * Splits the part of the text to service messages and regular text and notifies the callback about every piece
+   * as soon as it is found. Message candidates longer than {@link ServiceMessageParser#getMaxMessageLength()}
+   * are a part of the regular text. Service messages should not cross the bounds of the part: the end of a message
+   * is searched for before the end of the part only, a candidate without the end there makes the rest of the part regular text.
+   * @param mixedText text with service messages
+   * @param from start of the part, inclusive
+   * @param to end of the part, exclusive
+   * @param parserCallback callback
+   * @param parser parser settings
+   * @param holder holder of the reusable messages or null to create a new message every time
+   */
+  static void parse(@NotNull final String mixedText,
+                    final int from,
+                    final int to,
+                    @NotNull final ServiceMessageParserCallback parserCallback,
+                    @NotNull final ServiceMessageParser parser,
+                    @Nullable final ServiceMessageHolder holder) {
+    final MessageEndScanner scanner = new MessageEndScanner();
+    final int maxMessageLength = parser.getMaxMessageLength();
+    int regularTextStart = from;
+    int searchPos = from;
+    while (searchPos < to) {
+      final int messageStartPos = mixedText.indexOf(SERVICE_MESSAGE_START, searchPos);
+      if (messageStartPos == -1 || messageStartPos >= to) break;
+
+      final int limit = Math.min(getEndSearchLimit(mixedText, messageStartPos, maxMessageLength), to);
+      final int messageEndPos = scanner.findEnd(mixedText, messageStartPos + SERVICE_MESSAGE_START.length(), limit);
+      if (messageEndPos == -1) {
+        if (limit == to) break; // not finished message, the rest of the part is regular
+        searchPos = messageStartPos + 1; // too long message, treated as regular text
+        continue;
+      }
+
+      if (messageStartPos > regularTextStart) {
+        parserCallback.regularText(mixedText.substring(regularTextStart, messageStartPos));
       }
+      final String body = mixedText.substring(messageStartPos + SERVICE_MESSAGE_START.length(), messageEndPos - SERVICE_MESSAGE_END.length()).trim();
+      if (body.length() != 0) {
+        parseServiceMessage(body, parserCallback, parser, holder);
+      }
+      regularTextStart = messageEndPos;
+      searchPos = messageEndPos;
+    }
+
+    if (to > regularTextStart) {
+      parserCallback.regularText(mixedText.substring(regularTextStart, to));
     }
   }
 
+  /**
+   * @return index to stop the search of the end of the message starting at the specified index
+   */
+  static int getEndSearchLimit(@NotNull final String text, final int messageStartPos, final int maxMessageLength) {
+    return (int)Math.min((long)messageStartPos + maxMessageLength, text.length());
+  }
+
   /**
    * Finds "##teamcity[...]" substrings in the specified text and splits the text to potential service
    * messages (doesn't parse them) and regular text between them
@@ -211,7 +283,7 @@ public class ServiceMessage {
    **/
   @NotNull
   public Map<String, String> getAttributes() {
-    return Collections.unmodifiableMap(myAttributes);
+    return myAttributes;
   }
 
   /**
@@ -223,35 +295,94 @@ public class ServiceMessage {
   }
 
   public void setTimestamp(@NotNull Date timestamp) {
-    myAttributes.put("timestamp", new SimpleDateFormat(FORMAT_WITH_TZ).format(timestamp));
+    myAttributes.set("timestamp", new SimpleDateFormat(FORMAT_WITH_TZ).format(timestamp));
     myCreationTimestamp = new Timestamp(timestamp, true);
   }
 
   public void setFlowId(@NotNull String flowId) {
-    myAttributes.put("flowId", flowId);
+    myAttributes.set("flowId", flowId);
     myFlowId = flowId;
   }
 
   public static class Timestamp {
-    private final Date myTimestamp;
+    /** epoch milliseconds if time zone was specified, local milliseconds otherwise, see {@link TimestampParser#parse(String)} */
+    private final long myMillis;
     private final boolean myTimeZoneWasSpecified;
+    /** false if the timestamp was created with null date */
+    private final boolean myHasDate;
+    /** created on demand for parsed timestamps */
+    @Nullable private volatile Date myTimestamp;
+    /** epoch milliseconds, converted on demand from the local ones */
+    private volatile long myEpochMillis;
+    private volatile boolean myEpochMillisComputed;
 
     public Date getTimestamp() {
-      return myTimestamp;
+      Date timestamp = myTimestamp;
+      if (timestamp == null && myHasDate) {
+        timestamp = new Date(getTimeInMillis());
+        myTimestamp = timestamp;
+      }
+      return timestamp;
+    }
+
+    /**
+     * @return the same value as <code>getTimestamp().getTime()</code>
+     * @throws NullPointerException if the timestamp was created with null date
+     */
+    public long getTimeInMillis() {
+      if (!myHasDate) throw new NullPointerException("Timestamp has no date");
+      final Date timestamp = myTimestamp;
+      if (timestamp != null) return timestamp.getTime();
+      if (!myEpochMillisComputed) {
+        // the fields are written in this order and read in the opposite one, so the flag guards the value
+        myEpochMillis = TimestampParser.localToEpochMillis(myMillis);
+        myEpochMillisComputed = true;
+      }
+      return myEpochMillis;
     }
+
     public boolean isTimeZoneSpecified() {
       return myTimeZoneWasSpecified;
     }
 
-    public Timestamp(final Date timestamp, final boolean timeZoneWasSpecified) {
+    public Timestamp(@Nullable final Date timestamp, final boolean timeZoneWasSpecified) {
       myTimestamp = timestamp;
+      myHasDate = timestamp != null;
+      myMillis = timestamp == null ? 0 : timestamp.getTime();
+      myEpochMillis = myMillis;
+      myEpochMillisComputed = true;
+      myTimeZoneWasSpecified = timeZoneWasSpecified;
+    }
+
+    private Timestamp(final long millis, final boolean timeZoneWasSpecified) {
+      myMillis = millis;
+      myHasDate = true;
       myTimeZoneWasSpecified = timeZoneWasSpecified;
+      if (timeZoneWasSpecified) {
+        myEpochMillis = millis;
+        myEpochMillisComputed = true;
+      }
+    }
+
+    @NotNull
+    private static Timestamp parse(@NotNull String text) throws ParseException {
+      final long millis = TimestampParser.parse(text);
+      if (millis != TimestampParser.NOT_PARSED) {
+        return new Timestamp(millis, TimestampParser.hasTimeZone(text));
+      }
+
+      text = text.replace("'T'", "T");
+      if (text.length() == FORMAT_WITHOUT_TZ_LEN) {
+        return new Timestamp(new SimpleDateFormat(FORMAT_WITHOUT_TZ).parse(text), false);
+      } else {
+        return new Timestamp(new SimpleDateFormat(FORMAT_WITH_TZ).parse(text), true);
+      }
     }
   }
 
   @Nullable
   protected String getAttributeValue(@NotNull final String attrName) {
-    return getAttributes().get(attrName);
+    return myAttributes.getAttribute(attrName);
   }
 
   /**
@@ -267,6 +398,7 @@ public class ServiceMessage {
   private static List<Pair<String, Boolean>> splitTextToServiceMessagesAndRegularText(@NotNull final String text) {
     final List<Pair<String, Boolean>> pairs = new ArrayList<Pair<String, Boolean>>();
 
+    final MessageEndScanner scanner = new MessageEndScanner();
     int currentIndex = 0;
     while (currentIndex < text.length()) {
       int messageStartPos = text.indexOf(SERVICE_MESSAGE_START, currentIndex);
@@ -274,7 +406,7 @@ public class ServiceMessage {
         addMessageToListIfNotEmpty(pairs, text.substring(currentIndex), false);
         return pairs;
       }
-      int messageEndPos = findMessageEnd(text, messageStartPos);
+      int messageEndPos = scanner.findEnd(text, messageStartPos + SERVICE_MESSAGE_START.length(), text.length());
       if (messageEndPos == -1) {
         addMessageToListIfNotEmpty(pairs, text.substring(currentIndex), false);
         return pairs;
@@ -291,31 +423,67 @@ public class ServiceMessage {
     myArgument = argumentsStr == null ? null : stringToText(argumentsStr);
   }
 
-  private void parseAttributes(@Nullable final String argumentsStr) throws ParseException {
+  private void parseAttributes(@Nullable final String argumentsStr,
+                               final boolean lazyAttributes,
+                               @Nullable final ServiceMessageDictionary dictionary) throws ParseException {
     reset();
 
     if (argumentsStr != null) {
-      final Map<String, String> parsedAttributes = MapSerializerUtil.stringToProperties(argumentsStr, MapSerializerUtil.STD_ESCAPER, false);
-      for (String attrName : parsedAttributes.keySet()) {
-        if(!isReservedName(attrName) && !MapSerializerUtil.isValidJavaIdentifier(attrName))
-          throw new ParseException("Invalid attribute name: " + attrName, 0);
-      }
-      populateAttributes(parsedAttributes);
+      parseAttributes(argumentsStr, 0, lazyAttributes, dictionary);
     }
   }
 
-  private void populateAttributes(final Map<String, String> attributes) throws ParseException {
-    myAttributes.putAll(attributes);
+  private void parseAttributes(@NotNull final String source,
+                               final int fromIndex,
+                               final boolean lazyAttributes,
+                               @Nullable final ServiceMessageDictionary dictionary) throws ParseException {
+    myAttributes.parse(source, fromIndex, lazyAttributes, dictionary);
+    checkAttributeNames();
+    populateAttributes();
+  }
+
+  private void checkAttributeNames() throws ParseException {
+    for (int i = 0; i < myAttributes.size(); i++) {
+      final String attrName = myAttributes.getName(i);
+      if(!isReservedName(attrName) && !MapSerializerUtil.isValidJavaIdentifier(attrName))
+        throw new ParseException("Invalid attribute name: " + attrName, 0);
+    }
+  }
 
+  /**
+   * Refills this message with the argument, the same as parsing of "##teamcity[key 'argument']".
+   */
+  void initArgument(@NotNull final String key, @NotNull final String argument) {
+    reset();
+    myMessageName = key;
+    myArgument = argument;
+  }
+
+  /**
+   * Refills this message with the attributes, the same as parsing of "##teamcity[key name1='value1' name2='value2' ...]".
+   * @param key message name
+   * @param namesAndValues attribute names at even indices and values at odd indices
+   * @param count number of attributes
+   * @throws ParseException if the attributes are invalid
+   */
+  void initAttributes(@NotNull final String key, @NotNull final String[] namesAndValues, final int count) throws ParseException {
+    reset();
+    myMessageName = key;
+    for (int i = 0; i < count; i++) {
+      myAttributes.set(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+    }
+    checkAttributeNames();
+    populateAttributes();
+  }
+
+  private void populateAttributes() throws ParseException {
     if(myAttributes.containsKey(ARG_ATTRIBUTE)) {
-      myArgument = myAttributes.get(ARG_ATTRIBUTE);
-      myAttributes.remove(ARG_ATTRIBUTE);
+      myArgument = myAttributes.removeAttribute(ARG_ATTRIBUTE);
     }
 
     if(myAttributes.containsKey(TAGS_ATRRIBUTE)) {
-      final String tagsStr = myAttributes.get(TAGS_ATRRIBUTE);
-      myTags = splitTags(tagsStr);
-      myAttributes.remove(TAGS_ATRRIBUTE);
+      //noinspection ConstantConditions
+      myTags = splitTags(myAttributes.removeAttribute(TAGS_ATRRIBUTE));
     }
 
     parseCreationTimestamp();
@@ -323,11 +491,18 @@ public class ServiceMessage {
   }
 
   private void reset() {
-    myAttributes.clear();
+    myAttributes.reset();
     myCreationTimestamp = null;
     myFlowId = null;
     myTags = Collections.emptyList();
     myArgument = null;
+    clearCachedValues();
+  }
+
+  /**
+   * Called when the message is refilled with new attributes, subclasses drop the values computed from the old ones.
+   */
+  void clearCachedValues() {
   }
 
   private static List<String> splitTags(final String tagsStr) {
@@ -344,44 +519,55 @@ public class ServiceMessage {
   }
 
   private void parseCreationTimestamp() throws ParseException {
-    String creationTimestampStr = getAttributeValue("timestamp");
-    if (creationTimestampStr == null) {
-      myCreationTimestamp = null;
+    final String creationTimestampStr = getAttributeValue("timestamp");
+    myCreationTimestamp = creationTimestampStr == null ? null : Timestamp.parse(creationTimestampStr);
+  }
+
+  /**
+   * Parses body of the service message (text between "##teamcity[" and "]") and notifies parser callback
+   * either with the parsed message or with the parse exception.
+   * @param text trimmed non empty message body
+   * @param parserCallback callback
+   */
+  static void parseServiceMessage(@NotNull final String text,
+                                  @NotNull final ServiceMessageParserCallback parserCallback,
+                                  @NotNull final ServiceMessageParser parser,
+                                  @Nullable final ServiceMessageHolder holder) {
+    if (!parser.accepts(text)) {
+      final ServiceMessageFilter filter = parser.getFilter();
+      if (filter != null && filter.isReportSkipped()) {
+        parserCallback.regularText(appendPrefixAndSuffix(text));
+      }
       return;
     }
 
-    creationTimestampStr = creationTimestampStr.replace("'T'", "T");
-
-    synchronized (this) {
-      if (creationTimestampStr.length() == FORMAT_WITHOUT_TZ_LEN) {
-        myCreationTimestamp = new Timestamp(new SimpleDateFormat(FORMAT_WITHOUT_TZ).parse(creationTimestampStr), false);
-      } else {
-        myCreationTimestamp = new Timestamp(new SimpleDateFormat(FORMAT_WITH_TZ).parse(creationTimestampStr), true);
-      }
+    try {
+      parserCallback.serviceMessage(doParse(text, parser, holder));
+    } catch (ParseException e) {
+      parserCallback.parseException(e, appendPrefixAndSuffix(text));
     }
   }
 
   @NotNull
-  private static ServiceMessage doParse(@NotNull final String text) throws ParseException {
+  static ServiceMessage doParse(@NotNull final String text,
+                                @NotNull final ServiceMessageParser parser,
+                                @Nullable final ServiceMessageHolder holder) throws ParseException {
+    if (holder != null) {
+      return holder.parse(text, parser);
+    }
+
+    final ServiceMessageDictionary dictionary = parser.getDictionary();
     final int sepIndex = text.indexOf(" ");
-    final String key = sepIndex == -1 ? text : text.substring(0, sepIndex);
+    final int keyEnd = sepIndex == -1 ? text.length() : sepIndex;
+    final String key = dictionary == null ? text.substring(0, keyEnd) : dictionary.intern(text, 0, keyEnd);
     final String argumentsStr = sepIndex == -1 ? null : text.substring(sepIndex).trim();
 
-    Class<? extends ServiceMessage> clazz = SERVICE_MESSAGE_CLASSES.get(key);
-    if (clazz == null) clazz = ServiceMessage.class;
-
-    try {
-      final ServiceMessage msg = clazz.newInstance();
-      msg.init(key, argumentsStr);
-      return msg;
-    } catch (ParseException e) {
-      throw e;
-    } catch (Throwable e) {
-      throw new RuntimeException(e);
-    }
+    final ServiceMessage msg = parser.getFactoryRegistry().createServiceMessage(key);
+    msg.init(key, argumentsStr, parser.isLazyAttributes(), dictionary);
+    return msg;
   }
 
-  private static String appendPrefixAndSuffix(final String text) {
+  static String appendPrefixAndSuffix(final String text) {
     return SERVICE_MESSAGE_START + text + SERVICE_MESSAGE_END;
   }
 
@@ -393,16 +579,6 @@ public class ServiceMessage {
     }
   }
 
-  private static int findMessageEnd(@NotNull final String text, final int messageStartPos) {
-    int pos = messageStartPos;
-
-    do {
-      pos = text.indexOf(SERVICE_MESSAGE_END, pos + 1);
-    } while (pos != -1 && text.charAt(pos - 1) == MapSerializerUtil.STD_ESCAPER.escapeCharacter());
-
-    return pos == -1 ? -1 : pos + 1;
-  }
-
   @NotNull
   private static String stringToText(@NotNull String message) throws ParseException {
     message = message.trim();
@@ -415,12 +591,40 @@ public class ServiceMessage {
     }
   }
 
-  private void init(@NotNull final String key, @Nullable final String argumentsStr) throws ParseException {
+  private void init(@NotNull final String key,
+                    @Nullable final String argumentsStr,
+                    final boolean lazyAttributes,
+                    @Nullable final ServiceMessageDictionary dictionary) throws ParseException {
     myMessageName = key;
     if (argumentsStr != null && argumentsStr.trim().startsWith("'")) {
       parseArgument(argumentsStr);
     } else {
-      parseAttributes(argumentsStr);
+      parseAttributes(argumentsStr, lazyAttributes, dictionary);
+    }
+  }
+
+  /**
+   * Refills this message with the parsed message body, the attributes are parsed in lazy mode.
+   * @param key message name
+   * @param body trimmed message body
+   * @param argumentsStart index of the first character after the message name in the body
+   * @param dictionary dictionary for attribute names or null
+   * @throws ParseException if the message arguments cannot be parsed
+   */
+  void init(@NotNull final String key,
+            @NotNull final String body,
+            final int argumentsStart,
+            @Nullable final ServiceMessageDictionary dictionary) throws ParseException {
+    reset();
+    myMessageName = key;
+
+    int pos = argumentsStart;
+    while (pos < body.length() && body.charAt(pos) <= ' ') pos++;
+
+    if (pos < body.length() && body.charAt(pos) == '\'') {
+      parseArgument(body.substring(pos));
+    } else {
+      parseAttributes(body, pos, true, dictionary);
     }
   }
 
@@ -431,28 +635,106 @@ public class ServiceMessage {
    */
   @NotNull
   public String asString() {
-    if (myArgument != null && myTags.isEmpty())
+    final StringBuilder text = new StringBuilder();
+    try {
+      writeTo(text);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Writes the same text as {@link #asString()} to the target, attribute values are escaped right into the target.
+   * @param target target, e.g. {@link StringBuilder} or {@link java.io.Writer}
+   * @throws IOException if the target fails
+   */
+  public void writeTo(@NotNull final Appendable target) throws IOException {
+    if (isArgumentOnly()) {
       //noinspection ConstantConditions
-      return asString(myMessageName, myArgument);
-
-    final Map<String, String> fullAttrMap = new LinkedHashMap<String, String>();
-    if(myArgument != null)
-      fullAttrMap.put(ARG_ATTRIBUTE, myArgument);
-
-    if(!myTags.isEmpty()) {
-      StringBuilder tagsStr = new StringBuilder();
-      for (String tag : myTags) {
-        if(tagsStr.length() > 0)
-          tagsStr.append(TAGS_SEPARATOR);
-        tagsStr.append(tag);
+      writeTo(target, myMessageName, myArgument);
+      return;
+    }
+
+    target.append(SERVICE_MESSAGE_START).append(myMessageName);
+    visitSerializedAttributes(new SerializedAttributeVisitor() {
+      public void attribute(@NotNull final String name, @Nullable final String value) throws IOException {
+        target.append(' ');
+        MapSerializerUtil.writeProperty(target, name, value, MapSerializerUtil.STD_ESCAPER);
+      }
+
+      public void tags(@NotNull final List<String> tags) throws IOException {
+        target.append(' ');
+        writeTags(target, tags);
+      }
+    });
+    target.append(SERVICE_MESSAGE_END);
+  }
+
+  /**
+   * @return true if the message is serialized as "##teamcity[name 'argument']"
+   */
+  boolean isArgumentOnly() {
+    return myArgument != null && myTags.isEmpty();
+  }
+
+  /**
+   * Receives attributes of the message in the order they are serialized.
+   */
+  interface SerializedAttributeVisitor {
+    void attribute(@NotNull String name, @Nullable String value) throws IOException;
+
+    /**
+     * Receives tags which are serialized as the {@link ServiceMessage#TAGS_ATRRIBUTE} attribute
+     */
+    void tags(@NotNull List<String> tags) throws IOException;
+  }
+
+  /**
+   * Passes the attributes serialized by {@link #writeTo(Appendable)} to the visitor, including the reserved ones.
+   * Should not be called for messages serialized with the argument only, see {@link #isArgumentOnly()}.
+   */
+  void visitSerializedAttributes(@NotNull final SerializedAttributeVisitor visitor) throws IOException {
+    final Map<String, String> attributes = getAttributes();
+    if (myArgument != null) {
+      visitor.attribute(ARG_ATTRIBUTE, attributes.containsKey(ARG_ATTRIBUTE) ? attributes.get(ARG_ATTRIBUTE) : myArgument);
+    }
+
+    if (!myTags.isEmpty()) {
+      if (attributes.containsKey(TAGS_ATRRIBUTE)) {
+        visitor.attribute(TAGS_ATRRIBUTE, attributes.get(TAGS_ATRRIBUTE));
+      } else {
+        visitor.tags(myTags);
       }
+    }
 
-      fullAttrMap.put(TAGS_ATRRIBUTE, tagsStr.toString());
+    if (attributes == myAttributes) {
+      for (int i = 0; i < myAttributes.size(); i++) {
+        visitAttribute(visitor, myAttributes.getName(i), myAttributes.getValue(i));
+      }
+    } else {
+      for (Map.Entry<String, String> entry : attributes.entrySet()) {
+        visitAttribute(visitor, entry.getKey(), entry.getValue());
+      }
     }
+  }
 
-    fullAttrMap.putAll(myAttributes);
+  private void visitAttribute(@NotNull final SerializedAttributeVisitor visitor,
+                              @NotNull final String name,
+                              @Nullable final String value) throws IOException {
+    // reserved attributes are already passed
+    if (myArgument != null && ARG_ATTRIBUTE.equals(name) || !myTags.isEmpty() && TAGS_ATRRIBUTE.equals(name)) return;
+    visitor.attribute(name, value);
+  }
 
-    return asString(myMessageName, fullAttrMap);
+  private static void writeTags(@NotNull final Appendable target, @NotNull final List<String> tags) throws IOException {
+    MapSerializerUtil.escapeStr(target, TAGS_ATRRIBUTE, MapSerializerUtil.STD_ESCAPER);
+    target.append("='");
+    for (int i = 0; i < tags.size(); i++) {
+      if (i > 0) MapSerializerUtil.escapeStr(target, TAGS_SEPARATOR, MapSerializerUtil.STD_ESCAPER);
+      MapSerializerUtil.escapeStr(target, tags.get(i), MapSerializerUtil.STD_ESCAPER);
+    }
+    target.append('\'');
   }
 
   /**
@@ -465,16 +747,33 @@ public class ServiceMessage {
    */
   @NotNull
   public static String asString(@NotNull final String messageName, @NotNull final Map<String, String> attributes) {
-    StringBuilder text = new StringBuilder();
-    appendMessageName(text, messageName);
-    if (!attributes.isEmpty()) {
-      text.append(' ');
-      text.append(MapSerializerUtil.propertiesToString(attributes, MapSerializerUtil.STD_ESCAPER));
+    final StringBuilder text = new StringBuilder();
+    try {
+      writeTo(text, messageName, attributes);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
-    text.append(SERVICE_MESSAGE_END);
     return text.toString();
   }
 
+  /**
+   * Writes the same text as {@link #asString(String, Map)} to the target.
+   * @param target target
+   * @param messageName name of the message
+   * @param attributes attribute map
+   * @throws IOException if the target fails
+   */
+  public static void writeTo(@NotNull final Appendable target,
+                             @NotNull final String messageName,
+                             @NotNull final Map<String, String> attributes) throws IOException {
+    target.append(SERVICE_MESSAGE_START).append(messageName);
+    for (Map.Entry<String, String> entry : attributes.entrySet()) {
+      target.append(' ');
+      MapSerializerUtil.writeProperty(target, entry.getKey(), entry.getValue(), MapSerializerUtil.STD_ESCAPER);
+    }
+    target.append(SERVICE_MESSAGE_END);
+  }
+
   /**
    * Returns a string representation of a service message with a single argument.
    * This method is useful when there is a need of outputting service text without creating a ServiceMessage instance.
@@ -485,20 +784,30 @@ public class ServiceMessage {
    */
   @NotNull
   public static String asString(@NotNull final String messageName, @NotNull final String argument) {
-    StringBuilder text = new StringBuilder();
-    appendMessageName(text, messageName);
-
-    text.append(" '");
-    text.append(MapSerializerUtil.escapeStr(argument, MapSerializerUtil.STD_ESCAPER));
-    text.append("'");
-
-    text.append(SERVICE_MESSAGE_END);
+    final StringBuilder text = new StringBuilder();
+    try {
+      writeTo(text, messageName, argument);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
     return text.toString();
   }
 
-  private static void appendMessageName(final StringBuilder target, final String messageName) {
-    target.append(SERVICE_MESSAGE_START);
-    target.append(messageName);
+  /**
+   * Writes the same text as {@link #asString(String, String)} to the target.
+   * @param target target
+   * @param messageName name of the message
+   * @param argument the argument
+   * @throws IOException if the target fails
+   */
+  public static void writeTo(@NotNull final Appendable target,
+                             @NotNull final String messageName,
+                             @NotNull final String argument) throws IOException {
+    target.append(SERVICE_MESSAGE_START).append(messageName);
+    target.append(" '");
+    MapSerializerUtil.escapeStr(target, argument, MapSerializerUtil.STD_ESCAPER);
+    target.append('\'');
+    target.append(SERVICE_MESSAGE_END);
   }
 
   @Override
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.text.ParseException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parser for mixed text (text that can contain service messages inside) in UTF-8 encoding
+ * which works with bytes directly. Service message markers are searched in the bytes,
+ * only bodies of the service messages are decoded to strings. Regular text is passed
+ * to the callback as bytes, see {@link ServiceMessageByteParserCallback}.
+ * <br/>
+ * Input can be passed in several buffers with {@link #parse(ByteBuffer, long, boolean)}, in this case
+ * unfinished service message at the end of the buffer is not consumed and should be passed again with the next buffer.
+ * <br/>
+ * Instances are not thread-safe.
+ */
+public class ServiceMessageByteParser {
+  @NotNull private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @NotNull private static final byte[] SERVICE_MESSAGE_START = toAsciiBytes(ServiceMessage.SERVICE_MESSAGE_START);
+  private static final byte SERVICE_MESSAGE_END = ']';
+  private static final byte ESCAPE_CHARACTER = (byte) MapSerializerUtil.STD_ESCAPER.escapeCharacter();
+  private static final long NOT_SCANNED = Long.MIN_VALUE;
+
+  @NotNull private final ServiceMessageByteParserCallback myCallback;
+  private final int myMaxMessageLength;
+  @NotNull private final ServiceMessageParser myParser;
+  @Nullable private ServiceMessageHolder myMessageHolder;
+  @NotNull private final CharsetDecoder myDecoder = UTF8.newDecoder()
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  @NotNull private CharBuffer myChars = CharBuffer.allocate(256);
+
+  /** offset in the input of the first not scanned byte or of the found end of the last message candidate */
+  private long myScanOffset = NOT_SCANNED;
+  /** true if the byte at {@link #myScanOffset} is escaped */
+  private boolean myScanEscaped;
+  private boolean myScanEndFound;
+
+  public ServiceMessageByteParser(@NotNull final ServiceMessageByteParserCallback callback) {
+    this(callback, StreamingServiceMessageParser.DEFAULT_MAX_MESSAGE_LENGTH);
+  }
+
+  /**
+   * @param callback parser callback
+   * @param maxMessageLength maximum length in bytes of the service message including "##teamcity[" and "]",
+   *                         longer messages are treated as regular text
+   */
+  public ServiceMessageByteParser(@NotNull final ServiceMessageByteParserCallback callback, final int maxMessageLength) {
+    this(callback, maxMessageLength, new ServiceMessageParser());
+  }
+
+  /**
+   * @param callback parser callback
+   * @param maxMessageLength maximum length in bytes of the service message including "##teamcity[" and "]",
+   *                         longer messages are treated as regular text
+   * @param parser parser of the service messages found in the text
+   */
+  public ServiceMessageByteParser(@NotNull final ServiceMessageByteParserCallback callback,
+                                  final int maxMessageLength,
+                                  @NotNull final ServiceMessageParser parser) {
+    if (maxMessageLength < SERVICE_MESSAGE_START.length + 1) {
+      throw new IllegalArgumentException("Too small maximum message length: " + maxMessageLength);
+    }
+    myCallback = callback;
+    myMaxMessageLength = maxMessageLength;
+    myParser = parser;
+  }
+
+  /**
+   * Enables reuse of the parsed messages: every parsed message is refilled in the instance kept in the holder
+   * and must not be kept by the callback after it returns.
+   * @param messageHolder holder of the reusable messages or null to create a new message every time
+   * @see ServiceMessageHolder
+   */
+  public void setMessageHolder(@Nullable final ServiceMessageHolder messageHolder) {
+    myMessageHolder = messageHolder;
+  }
+
+  /**
+   * Parses mixed text in UTF-8 with the callback receiving decoded regular text.
+   * @param buffer complete text between position and limit of the buffer
+   * @param callback callback
+   */
+  public static void parse(@NotNull final ByteBuffer buffer, @NotNull final ServiceMessageParserCallback callback) {
+    new ServiceMessageByteParser(new DecodingCallback(callback)).parse(buffer);
+  }
+
+  /**
+   * Parses complete mixed text between position and limit of the buffer, offsets are counted from the buffer position.
+   * @param buffer text to parse, its position is moved to the limit
+   */
+  public void parse(@NotNull final ByteBuffer buffer) {
+    parse(buffer, 0, true);
+  }
+
+  /**
+   * Parses complete mixed text from the byte array, offsets are counted from the beginning of the array.
+   * @param bytes text holder
+   * @param offset offset of the text
+   * @param length length of the text
+   */
+  public void parse(@NotNull final byte[] bytes, final int offset, final int length) {
+    parse(ByteBuffer.wrap(bytes, offset, length), offset, true);
+  }
+
+  /**
+   * Parses mixed text between position and limit of the buffer.
+   * Position of the buffer is moved to the first not consumed byte. If <code>endOfInput</code> is false
+   * unfinished service message or unfinished UTF-8 sequence at the end of the buffer are not consumed,
+   * they should be passed again at the beginning of the next buffer.
+   * @param buffer text to parse
+   * @param offset offset of the text at the buffer position, used for the offsets passed to the callback
+   * @param endOfInput true if there is no more input after this buffer
+   */
+  public void parse(@NotNull final ByteBuffer buffer, final long offset, final boolean endOfInput) {
+    final int base = buffer.position();
+    final int limit = buffer.limit();
+    final ByteBuffer view = buffer.asReadOnlyBuffer();
+    final int maxMessageLength = Math.min(myMaxMessageLength, myParser.getMaxMessageLength());
+
+    int pos = base;
+    while (pos < limit) {
+      final int start = indexOfStart(buffer, pos, limit);
+      if (start == -1) {
+        final int regularEnd = endOfInput ? limit : getCompleteTextEnd(buffer, pos, limit);
+        reportRegularText(view, pos, regularEnd, offset - base);
+        pos = regularEnd;
+        break;
+      }
+
+      final int end = findMessageEnd(buffer, start + SERVICE_MESSAGE_START.length,
+                                     (int)Math.min((long)start + maxMessageLength, limit), offset - base);
+      if (end == -1 && limit - start >= maxMessageLength) {
+        // too long message, treated as regular text
+        reportRegularText(view, pos, start + 1, offset - base);
+        pos = start + 1;
+        continue;
+      }
+
+      if (end == -1 && endOfInput) {
+        reportRegularText(view, pos, limit, offset - base);
+        pos = limit;
+        break;
+      }
+
+      reportRegularText(view, pos, start, offset - base);
+      pos = start;
+      if (end == -1) break;
+
+      reportServiceMessage(buffer, view, start, end, offset - base);
+      pos = end;
+    }
+
+    buffer.position(pos);
+    if (endOfInput) {
+      myScanOffset = NOT_SCANNED;
+    }
+  }
+
+  private void reportServiceMessage(@NotNull final ByteBuffer buffer,
+                                    @NotNull final ByteBuffer view,
+                                    final int start,
+                                    final int end,
+                                    final long offsetShift) {
+    int bodyStart = start + SERVICE_MESSAGE_START.length;
+    int bodyEnd = end - 1;
+    while (bodyStart < bodyEnd && isWhitespace(buffer.get(bodyStart))) bodyStart++;
+    while (bodyStart < bodyEnd && isWhitespace(buffer.get(bodyEnd - 1))) bodyEnd--;
+    if (bodyStart == bodyEnd) return;
+
+    // messages rejected by the filter are not decoded when possible
+    if (!myParser.mayAccept(buffer, bodyStart, bodyEnd)) {
+      reportSkipped(view, start, end, offsetShift);
+      return;
+    }
+    final String body = decode(buffer, bodyStart, bodyEnd);
+    if (!myParser.accepts(body)) {
+      reportSkipped(view, start, end, offsetShift);
+      return;
+    }
+
+    try {
+      myCallback.serviceMessage(myParser.parseMessageBody(body, myMessageHolder), offsetShift + start, end - start);
+    } catch (ParseException e) {
+      myCallback.parseException(e, ServiceMessage.appendPrefixAndSuffix(body), offsetShift + start);
+    }
+  }
+
+  private void reportSkipped(@NotNull final ByteBuffer view, final int start, final int end, final long offsetShift) {
+    final ServiceMessageFilter filter = myParser.getFilter();
+    if (filter != null && filter.isReportSkipped()) {
+      reportRegularText(view, start, end, offsetShift);
+    }
+  }
+
+  private void reportRegularText(@NotNull final ByteBuffer view, final int from, final int to, final long offsetShift) {
+    if (to > from) {
+      view.clear();
+      view.limit(to);
+      view.position(from);
+      myCallback.regularText(view, offsetShift + from);
+    }
+  }
+
+  @NotNull
+  private String decode(@NotNull final ByteBuffer buffer, final int from, final int to) {
+    final ByteBuffer in = buffer.duplicate();
+    in.limit(to);
+    in.position(from);
+    // each UTF-8 byte is decoded to at most one char
+    if (myChars.capacity() < to - from) {
+      myChars = CharBuffer.allocate(to - from);
+    }
+    myChars.clear();
+    myDecoder.reset();
+    myDecoder.decode(in, myChars, true);
+    myDecoder.flush(myChars);
+    return new String(myChars.array(), 0, myChars.position());
+  }
+
+  private static int indexOfStart(@NotNull final ByteBuffer buffer, int from, final int to) {
+    final int lastStart = to - SERVICE_MESSAGE_START.length;
+    while (from <= lastStart) {
+      final int candidate = ByteSearch.indexOf(buffer, from, lastStart + 1, SERVICE_MESSAGE_START[0]);
+      if (candidate == -1) return -1;
+      if (startsWith(buffer, candidate, SERVICE_MESSAGE_START, SERVICE_MESSAGE_START.length)) return candidate;
+      from = candidate + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the closing "]" the same way as {@link MessageEndScanner} does. The scanned part of the message candidate
+   * is remembered by its offset in the input, so the unfinished message passed again with the next buffer
+   * is not scanned from the beginning.
+   * @return index after the closing "]" or -1 if there is no closing "]" before the limit
+   */
+  private int findMessageEnd(@NotNull final ByteBuffer buffer, final int contentStart, final int limit, final long offsetShift) {
+    int pos = contentStart;
+    boolean escaped = false;
+    if (myScanOffset != NOT_SCANNED && myScanOffset - offsetShift >= contentStart) {
+      final long scanPos = myScanOffset - offsetShift;
+      if (myScanEndFound) return scanPos < limit ? (int)scanPos + 1 : -1;
+      pos = (int)Math.min(scanPos, limit);
+      escaped = myScanEscaped;
+    }
+
+    while (pos < limit) {
+      if (escaped) {
+        escaped = false;
+        pos++;
+        continue;
+      }
+      final int found = ByteSearch.indexOfAny(buffer, pos, limit, ESCAPE_CHARACTER, SERVICE_MESSAGE_END);
+      if (found == -1) {
+        pos = limit;
+        break;
+      }
+      if (buffer.get(found) == SERVICE_MESSAGE_END) {
+        myScanOffset = offsetShift + found;
+        myScanEscaped = false;
+        myScanEndFound = true;
+        return found + 1;
+      }
+      escaped = true;
+      pos = found + 1;
+    }
+
+    myScanOffset = offsetShift + pos;
+    myScanEscaped = escaped;
+    myScanEndFound = false;
+    return -1;
+  }
+
+  /**
+   * @return end of the text which can be consumed when more input follows: without partial service message
+   * prefix and without unfinished UTF-8 sequence
+   */
+  private static int getCompleteTextEnd(@NotNull final ByteBuffer buffer, final int from, final int to) {
+    for (int partial = Math.min(SERVICE_MESSAGE_START.length - 1, to - from); partial > 0; partial--) {
+      if (startsWith(buffer, to - partial, SERVICE_MESSAGE_START, partial)) return to - partial;
+    }
+
+    // find the lead byte of the last UTF-8 sequence and check whether it is complete
+    for (int i = to - 1; i >= from && i >= to - 4; i--) {
+      final int b = buffer.get(i) & 0xFF;
+      if ((b & 0xC0) == 0x80) continue;
+      final int sequenceLength = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+      return i + sequenceLength > to ? i : to;
+    }
+    return to;
+  }
+
+  private static boolean startsWith(@NotNull final ByteBuffer buffer, final int offset, @NotNull final byte[] prefix, final int prefixLength) {
+    for (int i = 0; i < prefixLength; i++) {
+      if (buffer.get(offset + i) != prefix[i]) return false;
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(final byte b) {
+    // the same characters as removed by String.trim(), they are single bytes in UTF-8
+    return (b & 0xFF) <= ' ';
+  }
+
+  @NotNull
+  private static byte[] toAsciiBytes(@NotNull final String text) {
+    final byte[] result = new byte[text.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) text.charAt(i);
+    }
+    return result;
+  }
+
+  private static class DecodingCallback implements ServiceMessageByteParserCallback {
+    @NotNull private final ServiceMessageParserCallback myDelegate;
+
+    private DecodingCallback(@NotNull final ServiceMessageParserCallback delegate) {
+      myDelegate = delegate;
+    }
+
+    public void regularText(@NotNull final ByteBuffer text, final long offset) {
+      myDelegate.regularText(UTF8.decode(text).toString());
+    }
+
+    public void serviceMessage(@NotNull final ServiceMessage message, final long offset, final int length) {
+      myDelegate.serviceMessage(message);
+    }
+
+    public void parseException(@NotNull final ParseException parseException, @NotNull final String text, final long offset) {
+      myDelegate.parseException(parseException, text);
+    }
+  }
+}
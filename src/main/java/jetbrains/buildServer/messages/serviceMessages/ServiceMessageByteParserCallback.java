@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Callback of the {@link ServiceMessageByteParser}.
+ * All offsets are byte offsets from the beginning of the parsed input.
+ */
+public interface ServiceMessageByteParserCallback {
+  /**
+   * Called for the regular text, i.e. for the text that does not contain service messages in it.
+   * Text is not decoded, it is passed as UTF-8 bytes between position and limit of the read-only buffer.
+   * The buffer is valid only during the call.
+   * @param text UTF-8 bytes of the text
+   * @param offset offset of the text
+   */
+  void regularText(@NotNull ByteBuffer text, long offset);
+
+  /**
+   * Called for each parsed service message
+   * @param message parsed service message
+   * @param offset offset of the message (offset of the "##teamcity[" prefix)
+   * @param length length of the message in bytes including "##teamcity[" prefix and "]" suffix
+   */
+  void serviceMessage(@NotNull ServiceMessage message, long offset, int length);
+
+  /**
+   * Called when text looked like service message but parser failed to create service message object from it for some reason.
+   * @param parseException exception
+   * @param text text that parser failed to parse
+   * @param offset offset of the text
+   */
+  void parseException(@NotNull ParseException parseException, @NotNull String text, long offset);
+}
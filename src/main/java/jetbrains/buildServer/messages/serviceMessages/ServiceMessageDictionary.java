@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded dictionary of strings which repeat in service messages: message names, attribute names and
+ * short attribute values like test names and flow ids. Parser with a dictionary (see {@link ServiceMessageParser#setDictionary})
+ * returns the same string instance for equal strings, so retained messages share them.
+ * <br/>
+ * Every string added to the dictionary gets an id which never changes: ids are assigned in the order of addition
+ * starting from 0, and strings are never removed. When the dictionary is full or the string is too long,
+ * the string is not added and is returned as is.
+ * <br/>
+ * Dictionary is thread-safe and can be shared between parsers, lookups do not take locks.
+ */
+public final class ServiceMessageDictionary {
+  public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+  public static final int DEFAULT_MAX_STRING_LENGTH = 128;
+
+  private final int myMaxSize;
+  private final int myMaxStringLength;
+  @NotNull private volatile Entry[] myTable = new Entry[16];
+  /** strings by id, elements below {@link #mySize} are never changed */
+  @NotNull private volatile String[] myStrings = new String[16];
+  private volatile int mySize;
+
+  public ServiceMessageDictionary() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_STRING_LENGTH);
+  }
+
+  /**
+   * @param maxSize maximum number of strings in the dictionary
+   * @param maxStringLength maximum length of the string which can be added to the dictionary
+   */
+  public ServiceMessageDictionary(final int maxSize, final int maxStringLength) {
+    if (maxSize < 0) throw new IllegalArgumentException("Negative maximum size: " + maxSize);
+    myMaxSize = maxSize;
+    myMaxStringLength = maxStringLength;
+  }
+
+  /**
+   * @param string string to intern
+   * @return string from the dictionary equal to the specified one or the specified string itself if there is no
+   * such string in the dictionary and it cannot be added
+   */
+  @NotNull
+  public String intern(@NotNull final String string) {
+    final Entry entry = getOrAdd(string, 0, string.length(), string);
+    return entry == null ? string : entry.myString;
+  }
+
+  /**
+   * Interns part of the text without creating a substring if it is already in the dictionary.
+   * @param text text
+   * @param from start of the part, inclusive
+   * @param to end of the part, exclusive
+   * @return string from the dictionary or a new string
+   */
+  @NotNull
+  public String intern(@NotNull final String text, final int from, final int to) {
+    final Entry entry = getOrAdd(text, from, to, null);
+    return entry == null ? text.substring(from, to) : entry.myString;
+  }
+
+  /**
+   * @param string string
+   * @return id of the string or -1 if it is not in the dictionary
+   */
+  public int getId(@NotNull final String string) {
+    final Entry entry = find(myTable, string, 0, string.length(), hash(string, 0, string.length()));
+    return entry == null ? -1 : entry.myId;
+  }
+
+  /**
+   * @param id string id
+   * @return string with the specified id or null if there is no such id
+   */
+  @Nullable
+  public String getString(final int id) {
+    if (id < 0 || id >= mySize) return null;
+    return myStrings[id];
+  }
+
+  /**
+   * @return number of strings in the dictionary, the ids are less than this number
+   */
+  public int size() {
+    return mySize;
+  }
+
+  /**
+   * @return maximum length of the strings kept in the dictionary
+   */
+  public int getMaxStringLength() {
+    return myMaxStringLength;
+  }
+
+  @Nullable
+  private Entry getOrAdd(@NotNull final String text, final int from, final int to, @Nullable final String string) {
+    if (to - from > myMaxStringLength) return null;
+
+    final int hash = hash(text, from, to);
+    final Entry entry = find(myTable, text, from, to, hash);
+    if (entry != null || mySize >= myMaxSize) return entry;
+
+    synchronized (this) {
+      Entry[] table = myTable;
+      final Entry added = find(table, text, from, to, hash);
+      if (added != null || mySize >= myMaxSize) return added;
+
+      final int id = mySize;
+      if (id == myStrings.length) {
+        final String[] strings = new String[2 * id];
+        System.arraycopy(myStrings, 0, strings, 0, id);
+        myStrings = strings;
+      }
+      if (id >= table.length * 3 / 4) {
+        table = rehash(table);
+      }
+
+      final String value = string != null ? string : text.substring(from, to);
+      final int index = hash & (table.length - 1);
+      final Entry result = new Entry(value, hash, id, table[index]);
+      table[index] = result;
+      myStrings[id] = value;
+      myTable = table;
+      mySize = id + 1;
+      return result;
+    }
+  }
+
+  @NotNull
+  private static Entry[] rehash(@NotNull final Entry[] table) {
+    final Entry[] result = new Entry[2 * table.length];
+    for (Entry head : table) {
+      for (Entry entry = head; entry != null; entry = entry.myNext) {
+        final int index = entry.myHash & (result.length - 1);
+        result[index] = new Entry(entry.myString, entry.myHash, entry.myId, result[index]);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static Entry find(@NotNull final Entry[] table, @NotNull final String text, final int from, final int to, final int hash) {
+    for (Entry entry = table[hash & (table.length - 1)]; entry != null; entry = entry.myNext) {
+      if (entry.myHash == hash && entry.myString.length() == to - from && text.startsWith(entry.myString, from)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private static int hash(@NotNull final String text, final int from, final int to) {
+    int h = 0;
+    for (int i = from; i < to; i++) {
+      h = 31 * h + text.charAt(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Entry {
+    @NotNull private final String myString;
+    private final int myHash;
+    private final int myId;
+    @Nullable private final Entry myNext;
+
+    private Entry(@NotNull final String string, final int hash, final int id, @Nullable final Entry next) {
+      myString = string;
+      myHash = hash;
+      myId = id;
+      myNext = next;
+    }
+  }
+}
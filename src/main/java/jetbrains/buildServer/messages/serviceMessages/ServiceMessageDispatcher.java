@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.text.ParseException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parser callback which passes the parsed service messages to the handlers of the register.
+ * Regular text, parse errors and messages without handlers are passed to the delegate callback, if any.
+ * <pre>
+ * ServiceMessage.parse(text, new ServiceMessageDispatcher(register));
+ * </pre>
+ */
+public class ServiceMessageDispatcher implements ServiceMessageParserCallback {
+  @NotNull private final ConcurrentServiceMessagesRegister myRegister;
+  @Nullable private final ServiceMessageParserCallback myDelegate;
+
+  public ServiceMessageDispatcher(@NotNull final ConcurrentServiceMessagesRegister register) {
+    this(register, null);
+  }
+
+  /**
+   * @param register register with the handlers
+   * @param delegate callback for the regular text, parse errors and messages without handlers
+   */
+  public ServiceMessageDispatcher(@NotNull final ConcurrentServiceMessagesRegister register,
+                                  @Nullable final ServiceMessageParserCallback delegate) {
+    myRegister = register;
+    myDelegate = delegate;
+  }
+
+  public void regularText(@NotNull final String text) {
+    if (myDelegate != null) myDelegate.regularText(text);
+  }
+
+  public void serviceMessage(@NotNull final ServiceMessage message) {
+    if (!myRegister.dispatch(message) && myDelegate != null) myDelegate.serviceMessage(message);
+  }
+
+  public void parseException(@NotNull final ParseException parseException, @NotNull final String text) {
+    if (myDelegate != null) myDelegate.parseException(parseException, text);
+  }
+}
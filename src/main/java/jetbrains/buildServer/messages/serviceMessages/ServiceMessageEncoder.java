@@ -0,0 +1,248 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes service messages in UTF-8 encoding directly to bytes, the result is the same as
+ * <code>message.asString().getBytes("UTF-8")</code> but the message text is not created.
+ * Unpaired surrogate characters are written as '?' like the standard encoder does.
+ * <br/>
+ * Static methods are thread-safe, instances which write to streams are not.
+ */
+public final class ServiceMessageEncoder {
+  public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+  @NotNull private final StreamSink mySink;
+
+  public ServiceMessageEncoder() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize size of the buffer for bytes written to the stream
+   */
+  public ServiceMessageEncoder(final int bufferSize) {
+    if (bufferSize < 4) throw new IllegalArgumentException("Too small buffer size: " + bufferSize);
+    mySink = new StreamSink(new byte[bufferSize]);
+  }
+
+  /**
+   * Writes encoded message to the stream, the stream is not flushed.
+   * @param message message to write
+   * @param out target stream
+   * @throws IOException if the stream fails
+   */
+  public void write(@NotNull final ServiceMessage message, @NotNull final OutputStream out) throws IOException {
+    mySink.myOut = out;
+    try {
+      message.writeTo(mySink);
+      mySink.finish();
+      mySink.flushBuffer();
+    } finally {
+      mySink.myOut = null;
+      mySink.reset();
+    }
+  }
+
+  /**
+   * Writes encoded regular text to the stream, the stream is not flushed.
+   * @param text text to write
+   * @param out target stream
+   * @throws IOException if the stream fails
+   */
+  public void writeText(@NotNull final CharSequence text, @NotNull final OutputStream out) throws IOException {
+    mySink.myOut = out;
+    try {
+      mySink.append(text);
+      mySink.finish();
+      mySink.flushBuffer();
+    } finally {
+      mySink.myOut = null;
+      mySink.reset();
+    }
+  }
+
+  /**
+   * @param message message
+   * @return number of bytes the message takes in UTF-8 encoding
+   */
+  public static int getEncodedSize(@NotNull final ServiceMessage message) {
+    final CountingSink sink = new CountingSink();
+    writeTo(message, sink);
+    return sink.mySize;
+  }
+
+  /**
+   * Writes encoded message to the buffer starting from its position and moves the position after the message.
+   * Use {@link #getEncodedSize(ServiceMessage)} to make sure the buffer has enough space.
+   * @param message message to write
+   * @param target target buffer
+   * @throws BufferOverflowException if there is not enough space in the buffer, the position of the buffer is not changed then
+   */
+  public static void encode(@NotNull final ServiceMessage message, @NotNull final ByteBuffer target) throws BufferOverflowException {
+    final int position = target.position();
+    try {
+      writeTo(message, new BufferSink(target));
+    } catch (BufferOverflowException e) {
+      target.position(position);
+      throw e;
+    }
+  }
+
+  /**
+   * @param message message
+   * @return message in UTF-8 encoding
+   */
+  @NotNull
+  public static byte[] encode(@NotNull final ServiceMessage message) {
+    final byte[] result = new byte[getEncodedSize(message)];
+    encode(message, ByteBuffer.wrap(result));
+    return result;
+  }
+
+  private static void writeTo(@NotNull final ServiceMessage message, @NotNull final Utf8Sink sink) {
+    try {
+      message.writeTo(sink);
+      sink.finish();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Encodes appended characters to UTF-8, the high surrogate at the end of the appended text waits for the next character.
+   */
+  private static abstract class Utf8Sink implements Appendable {
+    private char myHighSurrogate;
+
+    public Appendable append(final CharSequence csq) throws IOException {
+      return csq == null ? append("null") : append(csq, 0, csq.length());
+    }
+
+    public Appendable append(final CharSequence csq, final int start, final int end) throws IOException {
+      if (csq == null) return append("null", start, end);
+      for (int i = start; i < end; i++) {
+        append(csq.charAt(i));
+      }
+      return this;
+    }
+
+    public Appendable append(final char c) throws IOException {
+      if (myHighSurrogate != 0) {
+        final char high = myHighSurrogate;
+        myHighSurrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          final int codePoint = Character.toCodePoint(high, c);
+          write(0xF0 | (codePoint >> 18));
+          write(0x80 | ((codePoint >> 12) & 0x3F));
+          write(0x80 | ((codePoint >> 6) & 0x3F));
+          write(0x80 | (codePoint & 0x3F));
+          return this;
+        }
+        write('?');
+      }
+
+      if (c < 0x80) {
+        write(c);
+      } else if (c < 0x800) {
+        write(0xC0 | (c >> 6));
+        write(0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c)) {
+        myHighSurrogate = c;
+      } else if (Character.isLowSurrogate(c)) {
+        write('?');
+      } else {
+        write(0xE0 | (c >> 12));
+        write(0x80 | ((c >> 6) & 0x3F));
+        write(0x80 | (c & 0x3F));
+      }
+      return this;
+    }
+
+    void finish() throws IOException {
+      if (myHighSurrogate != 0) {
+        myHighSurrogate = 0;
+        write('?');
+      }
+    }
+
+    void reset() {
+      myHighSurrogate = 0;
+    }
+
+    abstract void write(int b) throws IOException;
+  }
+
+  private static class CountingSink extends Utf8Sink {
+    private int mySize;
+
+    @Override
+    void write(final int b) {
+      mySize++;
+    }
+  }
+
+  private static class BufferSink extends Utf8Sink {
+    @NotNull private final ByteBuffer myBuffer;
+
+    private BufferSink(@NotNull final ByteBuffer buffer) {
+      myBuffer = buffer;
+    }
+
+    @Override
+    void write(final int b) {
+      myBuffer.put((byte) b);
+    }
+  }
+
+  private static class StreamSink extends Utf8Sink {
+    @NotNull private final byte[] myBuffer;
+    private int myCount;
+    @Nullable private OutputStream myOut;
+
+    private StreamSink(@NotNull final byte[] buffer) {
+      myBuffer = buffer;
+    }
+
+    @Override
+    void write(final int b) throws IOException {
+      if (myCount == myBuffer.length) flushBuffer();
+      myBuffer[myCount++] = (byte) b;
+    }
+
+    void flushBuffer() throws IOException {
+      if (myCount > 0) {
+        //noinspection ConstantConditions
+        myOut.write(myBuffer, 0, myCount);
+        myCount = 0;
+      }
+    }
+
+    @Override
+    void reset() {
+      super.reset();
+      myCount = 0;
+    }
+  }
+}
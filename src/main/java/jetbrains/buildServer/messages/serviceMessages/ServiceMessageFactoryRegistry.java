@@ -0,0 +1,246 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable mapping of service message names to factories of service message classes.
+ * Messages with names without factory are parsed to {@link ServiceMessage} instances.
+ * <br/>
+ * Registry instances are never modified, {@link #withFactory(String, ServiceMessageFactory)} returns a new registry,
+ * so a registry can be used by any number of parsing threads without synchronization.
+ * <br/>
+ * Registry used by {@link ServiceMessage#parse(String)} and other parser methods by default can be extended with
+ * {@link #registerDefaultFactory(String, ServiceMessageFactory)}. A registry for the specific parser can be set
+ * with {@link ServiceMessageParser#setFactoryRegistry(ServiceMessageFactoryRegistry)}.
+ */
+public final class ServiceMessageFactoryRegistry {
+  @NotNull private static final ServiceMessageFactory SERVICE_MESSAGE_FACTORY = new ServiceMessageFactory() {
+    @NotNull
+    public ServiceMessage createServiceMessage() {
+      return new ServiceMessage();
+    }
+  };
+
+  @NotNull private static final ServiceMessageFactoryRegistry BUILT_IN = new ServiceMessageFactoryRegistry(createBuiltInFactories());
+
+  @NotNull private static volatile ServiceMessageFactoryRegistry ourDefault = BUILT_IN;
+
+  @NotNull private final Map<String, ServiceMessageFactory> myFactories;
+
+  private ServiceMessageFactoryRegistry(@NotNull final Map<String, ServiceMessageFactory> factories) {
+    myFactories = Collections.unmodifiableMap(factories);
+  }
+
+  /**
+   * @return registry with factories of the service message classes from this library only
+   */
+  @NotNull
+  public static ServiceMessageFactoryRegistry getBuiltIn() {
+    return BUILT_IN;
+  }
+
+  /**
+   * @return registry used by parsers by default
+   */
+  @NotNull
+  public static ServiceMessageFactoryRegistry getDefault() {
+    return ourDefault;
+  }
+
+  /**
+   * Registers factory in the default registry replacing the previous factory for the same message name, if any.
+   * Parsing which is already in progress can still use the previous registry.
+   * @param messageName service message name
+   * @param factory factory of the service message class
+   */
+  public static void registerDefaultFactory(@NotNull final String messageName, @NotNull final ServiceMessageFactory factory) {
+    synchronized (ServiceMessageFactoryRegistry.class) {
+      ourDefault = ourDefault.withFactory(messageName, factory);
+    }
+  }
+
+  /**
+   * @param messageName service message name
+   * @param factory factory of the service message class
+   * @return new registry with all factories of this registry and the specified factory
+   */
+  @NotNull
+  public ServiceMessageFactoryRegistry withFactory(@NotNull final String messageName, @NotNull final ServiceMessageFactory factory) {
+    final Map<String, ServiceMessageFactory> factories = new HashMap<String, ServiceMessageFactory>(myFactories);
+    factories.put(messageName, factory);
+    return new ServiceMessageFactoryRegistry(factories);
+  }
+
+  /**
+   * @param messageName service message name
+   * @return factory registered for the message name or null
+   */
+  @Nullable
+  public ServiceMessageFactory getFactory(@NotNull final String messageName) {
+    return myFactories.get(messageName);
+  }
+
+  @NotNull
+  ServiceMessage createServiceMessage(@NotNull final String messageName) {
+    final ServiceMessageFactory factory = myFactories.get(messageName);
+    return (factory == null ? SERVICE_MESSAGE_FACTORY : factory).createServiceMessage();
+  }
+
+  @NotNull
+  private static Map<String, ServiceMessageFactory> createBuiltInFactories() {
+    final Map<String, ServiceMessageFactory> factories = new HashMap<String, ServiceMessageFactory>();
+    factories.put(ServiceMessageTypes.PROGRESS_MESSAGE, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new ProgressMessage();
+      }
+    });
+    factories.put(ServiceMessageTypes.PROGRESS_START, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new ProgressStart();
+      }
+    });
+    factories.put(ServiceMessageTypes.PROGRESS_FINISH, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new ProgressFinish();
+      }
+    });
+    factories.put(ServiceMessageTypes.PUBLISH_ARTIFACTS, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new PublishArtifacts();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_SUITE_STARTED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestSuiteStarted();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_SUITE_FINISHED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestSuiteFinished();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_STARTED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestStarted();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_FAILED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestFailed();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_FINISHED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestFinished();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_IGNORED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestIgnored();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_STD_OUT, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestStdOut();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_STD_ERR, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestStdErr();
+      }
+    });
+    factories.put(ServiceMessageTypes.BUILD_STATUS, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new BuildStatus();
+      }
+    });
+    factories.put(ServiceMessageTypes.BUILD_NUMBER, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new BuildNumber();
+      }
+    });
+    factories.put(ServiceMessageTypes.BUILD_STATISTIC_VALUE, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new BuildStatisticValue();
+      }
+    });
+    factories.put(ServiceMessageTypes.TEST_NAVIGATION_INFO, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new TestNavigationInfo();
+      }
+    });
+    factories.put(ServiceMessageTypes.BLOCK_OPENED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new BlockOpened();
+      }
+    });
+    factories.put(ServiceMessageTypes.BLOCK_CLOSED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new BlockClosed();
+      }
+    });
+    factories.put(ServiceMessageTypes.COMPILATION_STARTED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new CompilationStarted();
+      }
+    });
+    factories.put(ServiceMessageTypes.COMPILATION_FINISHED, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new CompilationFinished();
+      }
+    });
+    factories.put(ServiceMessageTypes.MESSAGE, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new Message();
+      }
+    });
+    factories.put(ServiceMessageTypes.INTERNAL_ERROR, new ServiceMessageFactory() {
+      @NotNull
+      public ServiceMessage createServiceMessage() {
+        return new InternalErrorMessage();
+      }
+    });
+    return factories;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Selects service messages which should be parsed. The check is done on the message text before parsing:
+ * only the message name and the value of the filtered attribute (if any) are read, no values are unescaped
+ * and no objects are created for the messages which do not match.
+ * <br/>
+ * Skipped messages are dropped by default or reported as regular text if {@link #reportSkipped()} is used.
+ * Messages which do not match because their attributes cannot be parsed are skipped as well.
+ * <br/>
+ * Filters are immutable.
+ * @see ServiceMessage#parse(String, ServiceMessageFilter, ServiceMessageParserCallback)
+ * @see ServiceMessageParser#setFilter(ServiceMessageFilter)
+ */
+public final class ServiceMessageFilter {
+  @NotNull private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte SPACE = ' ';
+
+  @Nullable private final String[] myMessageNames;
+  @Nullable private final String myAttributeName;
+  @Nullable private final String myAttributeValue;
+  private final boolean myReportSkipped;
+  /** UTF-8 forms of the names and the attribute for the check of the undecoded messages, see {@link #mayAccept(ByteBuffer, int, int)} */
+  @Nullable private final byte[][] myMessageNameBytes;
+  @Nullable private final byte[] myAttributeNameBytes;
+  /** null if the value can be written in several forms in the message text */
+  @Nullable private final byte[] myQuotedAttributeValueBytes;
+
+  private ServiceMessageFilter(@Nullable final String[] messageNames,
+                               @Nullable final String attributeName,
+                               @Nullable final String attributeValue,
+                               final boolean reportSkipped) {
+    myMessageNames = messageNames;
+    myAttributeName = attributeName;
+    myAttributeValue = attributeValue;
+    myReportSkipped = reportSkipped;
+
+    if (messageNames == null) {
+      myMessageNameBytes = null;
+    } else {
+      myMessageNameBytes = new byte[messageNames.length][];
+      for (int i = 0; i < messageNames.length; i++) {
+        myMessageNameBytes[i] = messageNames[i].getBytes(UTF8);
+      }
+    }
+    myAttributeNameBytes = attributeName == null || attributeName.indexOf('\uFFFD') != -1 ? null : attributeName.getBytes(UTF8);
+    myQuotedAttributeValueBytes = attributeValue == null || !hasSingleForm(attributeValue) ? null : ("'" + attributeValue + "'").getBytes(UTF8);
+  }
+
+  /**
+   * @param messageNames names of the messages to accept
+   * @return filter which accepts messages with the specified names only
+   */
+  @NotNull
+  public static ServiceMessageFilter messageNames(@NotNull final String... messageNames) {
+    return new ServiceMessageFilter(messageNames.clone(), null, null, false);
+  }
+
+  /**
+   * @param attributeName name of the attribute, e.g. "flowId"
+   * @param attributeValue attribute value
+   * @return filter which accepts messages with any name which have the attribute with the specified value
+   */
+  @NotNull
+  public static ServiceMessageFilter attribute(@NotNull final String attributeName, @NotNull final String attributeValue) {
+    return new ServiceMessageFilter(null, attributeName, attributeValue, false);
+  }
+
+  /**
+   * @param attributeName name of the attribute, e.g. "flowId"
+   * @param attributeValue attribute value
+   * @return filter which accepts messages accepted by this filter which also have the attribute with the specified value
+   */
+  @NotNull
+  public ServiceMessageFilter withAttribute(@NotNull final String attributeName, @NotNull final String attributeValue) {
+    return new ServiceMessageFilter(myMessageNames, attributeName, attributeValue, myReportSkipped);
+  }
+
+  /**
+   * @return filter which accepts the same messages as this filter and reports skipped messages as regular text
+   */
+  @NotNull
+  public ServiceMessageFilter reportSkipped() {
+    return new ServiceMessageFilter(myMessageNames, myAttributeName, myAttributeValue, true);
+  }
+
+  /**
+   * @return true if skipped messages should be reported to the parser callback as regular text, false if they are dropped
+   */
+  public boolean isReportSkipped() {
+    return myReportSkipped;
+  }
+
+  /**
+   * @param body trimmed text of the message between "##teamcity[" and "]"
+   * @return true if the message should be parsed
+   */
+  boolean accepts(@NotNull final String body) {
+    int nameEnd = body.indexOf(' ');
+    if (nameEnd == -1) nameEnd = body.length();
+
+    if (myMessageNames != null && !matchesName(body, nameEnd, myMessageNames)) return false;
+    if (myAttributeName == null) return true;
+
+    //noinspection ConstantConditions
+    return hasAttribute(body, nameEnd, myAttributeName, myAttributeValue);
+  }
+
+  /**
+   * Checks the message in UTF-8 encoding without decoding it. Only the messages which cannot be accepted are detected:
+   * the name does not match, the attribute name is missing in the text or the attribute value is missing in the text
+   * in the only form it can be written in. Messages which may be accepted should be checked with {@link #accepts(String)}.
+   * @param buffer buffer with the message
+   * @param from start of the trimmed message body between "##teamcity[" and "]"
+   * @param to end of the trimmed message body
+   * @return false if the message is not accepted
+   */
+  boolean mayAccept(@NotNull final ByteBuffer buffer, final int from, final int to) {
+    int nameEnd = ByteSearch.indexOf(buffer, from, to, SPACE);
+    if (nameEnd == -1) nameEnd = to;
+
+    if (myMessageNameBytes != null && !mayMatchName(buffer, from, nameEnd, myMessageNameBytes)) return false;
+    if (myAttributeNameBytes != null && indexOf(buffer, nameEnd, to, myAttributeNameBytes) == -1) return false;
+    return myQuotedAttributeValueBytes == null || indexOf(buffer, nameEnd, to, myQuotedAttributeValueBytes) != -1;
+  }
+
+  /**
+   * Different bytes are decoded to different names unless they are malformed, so only ASCII names are rejected.
+   */
+  private static boolean mayMatchName(@NotNull final ByteBuffer buffer, final int from, final int to, @NotNull final byte[][] names) {
+    for (byte[] name : names) {
+      if (name.length == to - from && regionMatches(buffer, from, name)) return true;
+    }
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) < 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the value has no characters which can be escaped or come from malformed UTF-8,
+   * then it is written in the message text as is
+   */
+  private static boolean hasSingleForm(@NotNull final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (CompiledEscaper.STD.escape(c) != 0 || c == '\uFFFD' || c >= '\uD800' && c <= '\uDFFF') return false;
+    }
+    return true;
+  }
+
+  private static int indexOf(@NotNull final ByteBuffer buffer, int from, final int to, @NotNull final byte[] bytes) {
+    final int last = to - bytes.length;
+    while (from <= last) {
+      final int candidate = ByteSearch.indexOf(buffer, from, last + 1, bytes[0]);
+      if (candidate == -1) return -1;
+      if (regionMatches(buffer, candidate, bytes)) return candidate;
+      from = candidate + 1;
+    }
+    return -1;
+  }
+
+  private static boolean regionMatches(@NotNull final ByteBuffer buffer, final int offset, @NotNull final byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (buffer.get(offset + i) != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  private static boolean matchesName(@NotNull final String body, final int nameEnd, @NotNull final String[] names) {
+    for (String name : names) {
+      if (name.length() == nameEnd && body.startsWith(name)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Looks for the attribute the same way as {@link MapSerializerUtil#parseProperties} does, the last value of the
+   * attribute wins as in the attributes map of the parsed message.
+   */
+  private static boolean hasAttribute(@NotNull final String body,
+                                      final int argumentsStart,
+                                      @NotNull final String attributeName,
+                                      @NotNull final String attributeValue) {
+    final MapSerializerUtil.EscapeInfoProvider escaper = MapSerializerUtil.STD_ESCAPER;
+    final int length = body.length();
+    boolean result = false;
+
+    int pos = skipWhitespaces(body, argumentsStart);
+    if (pos < length && body.charAt(pos) == '\'') return false; // single argument message
+
+    while (pos < length) {
+      final int nameSep = body.indexOf('=', pos);
+      if (nameSep == -1) return false;
+      final int valueQuote = skipWhitespaces(body, nameSep + 1);
+      if (valueQuote == length || body.charAt(valueQuote) != '\'') return false;
+      final int valueEnd = MapSerializerUtil.indexOf(body, valueQuote + 1, '\'', escaper);
+      if (valueEnd == -1) return false;
+
+      if (isTrimmedRegion(body, pos, nameSep, attributeName)) {
+        result = MapSerializerUtil.unescapedEquals(body, valueQuote + 1, valueEnd, attributeValue, escaper);
+      }
+      pos = skipWhitespaces(body, valueEnd + 1);
+    }
+    return result;
+  }
+
+  private static boolean isTrimmedRegion(@NotNull final String text, int from, int to, @NotNull final String expected) {
+    from = skipWhitespaces(text, from);
+    while (to > from && text.charAt(to - 1) <= ' ') to--;
+    return to - from == expected.length() && text.startsWith(expected, from);
+  }
+
+  private static int skipWhitespaces(@NotNull final String text, int from) {
+    while (from < text.length() && text.charAt(from) <= ' ') from++;
+    return from;
+  }
+}
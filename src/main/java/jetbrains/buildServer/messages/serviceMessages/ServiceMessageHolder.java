@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.text.ParseException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Holder of reusable service message instances. When a holder is passed to the parser, the parser does not create
+ * a new message for every parsed text but refills the instance kept in the holder for the message name.
+ * <br/>
+ * A message returned by the parser or passed to the parser callback is valid only until the next message is
+ * parsed with the same holder, so it must not be kept by the caller. Use {@link ServiceMessage#asString()} and
+ * {@link ServiceMessage#parse(String)} to get a copy if needed.
+ * <br/>
+ * Holder is not thread safe, use a separate holder in each thread.
+ * @see ServiceMessageParser#parse(String, ServiceMessageHolder)
+ * @see ServiceMessageParser#parse(String, ServiceMessageHolder, ServiceMessageParserCallback)
+ */
+public final class ServiceMessageHolder {
+  /** messages with other names are created on every parse */
+  private static final int MAX_REUSED_NAMES = 64;
+
+  @Nullable private ServiceMessageFactoryRegistry myFactoryRegistry;
+  @NotNull private String[] myNames = new String[8];
+  @NotNull private ServiceMessage[] myMessages = new ServiceMessage[8];
+  private int mySize;
+  private int myLastIndex;
+
+  /**
+   * Refills the message kept for the message name with the parsed message body.
+   * @param body trimmed non empty message body
+   * @param parser parser which settings are used
+   * @return parsed message
+   * @throws ParseException if the message arguments cannot be parsed
+   */
+  @NotNull
+  ServiceMessage parse(@NotNull final String body, @NotNull final ServiceMessageParser parser) throws ParseException {
+    final ServiceMessageFactoryRegistry registry = parser.getFactoryRegistry();
+    if (registry != myFactoryRegistry) {
+      clear();
+      myFactoryRegistry = registry;
+    }
+
+    final int sepIndex = body.indexOf(' ');
+    final int nameEnd = sepIndex == -1 ? body.length() : sepIndex;
+
+    int index = indexOf(body, nameEnd);
+    if (index == -1) {
+      final ServiceMessageDictionary dictionary = parser.getDictionary();
+      final String name = dictionary == null ? body.substring(0, nameEnd) : dictionary.intern(body, 0, nameEnd);
+      final ServiceMessage message = registry.createServiceMessage(name);
+      if (mySize == MAX_REUSED_NAMES) {
+        message.init(name, body, nameEnd, dictionary);
+        return message;
+      }
+      index = add(name, message);
+    }
+
+    myLastIndex = index;
+    final ServiceMessage message = myMessages[index];
+    message.init(myNames[index], body, nameEnd, parser.getDictionary());
+    return message;
+  }
+
+  private int indexOf(@NotNull final String body, final int nameEnd) {
+    if (mySize > 0 && isName(myNames[myLastIndex], body, nameEnd)) return myLastIndex;
+    for (int i = 0; i < mySize; i++) {
+      if (isName(myNames[i], body, nameEnd)) return i;
+    }
+    return -1;
+  }
+
+  private static boolean isName(@NotNull final String name, @NotNull final String body, final int nameEnd) {
+    return name.length() == nameEnd && body.startsWith(name);
+  }
+
+  private int add(@NotNull final String name, @NotNull final ServiceMessage message) {
+    if (mySize == myNames.length) {
+      final int capacity = mySize * 2;
+      final String[] names = new String[capacity];
+      final ServiceMessage[] messages = new ServiceMessage[capacity];
+      System.arraycopy(myNames, 0, names, 0, mySize);
+      System.arraycopy(myMessages, 0, messages, 0, mySize);
+      myNames = names;
+      myMessages = messages;
+    }
+    myNames[mySize] = name;
+    myMessages[mySize] = message;
+    return mySize++;
+  }
+
+  private void clear() {
+    for (int i = 0; i < mySize; i++) {
+      myNames[i] = null;
+      myMessages[i] = null;
+    }
+    mySize = 0;
+    myLastIndex = 0;
+  }
+}
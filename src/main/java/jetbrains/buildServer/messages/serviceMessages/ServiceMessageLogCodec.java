@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compression format of the service message logs, see {@link ServiceMessageLogReader} and {@link ServiceMessageLogWriter}.
+ * Other formats can be supported by implementing this interface with the streams of a compression library.
+ */
+public interface ServiceMessageLogCodec {
+  /** gzip format, see {@link GZIPInputStream} */
+  ServiceMessageLogCodec GZIP = new ServiceMessageLogCodec() {
+    @NotNull
+    public InputStream decompress(@NotNull final InputStream compressed) throws IOException {
+      return new GZIPInputStream(compressed, 64 * 1024);
+    }
+
+    @NotNull
+    public OutputStream compress(@NotNull final OutputStream target) throws IOException {
+      return new GZIPOutputStream(target, 64 * 1024);
+    }
+  };
+
+  /** zlib format, see {@link InflaterInputStream} */
+  ServiceMessageLogCodec DEFLATE = new ServiceMessageLogCodec() {
+    @NotNull
+    public InputStream decompress(@NotNull final InputStream compressed) {
+      return new InflaterInputStream(compressed, new Inflater(), 64 * 1024) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inf.end();
+          }
+        }
+      };
+    }
+
+    @NotNull
+    public OutputStream compress(@NotNull final OutputStream target) {
+      return new DeflaterOutputStream(target, new Deflater(), 64 * 1024) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            def.end();
+          }
+        }
+      };
+    }
+  };
+
+  /**
+   * @param compressed stream of the compressed data
+   * @return stream of the decompressed data, closing it closes the compressed stream
+   * @throws IOException if the stream cannot be created, e.g. the header of the data is invalid
+   */
+  @NotNull
+  InputStream decompress(@NotNull InputStream compressed) throws IOException;
+
+  /**
+   * @param target stream for the compressed data
+   * @return stream which compresses the written data, closing it finishes the compressed data and closes the target
+   * @throws IOException if the stream cannot be created
+   */
+  @NotNull
+  OutputStream compress(@NotNull OutputStream target) throws IOException;
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parses compressed logs with service messages in UTF-8 encoding. The log is decompressed and parsed block by block,
+ * so the decompressed text is never kept in memory as a whole.
+ * <br/>
+ * In pipelined mode the log is decompressed in a background thread while the previous blocks are parsed
+ * in the calling thread, at most {@link #PIPELINE_DEPTH} decompressed blocks wait for parsing.
+ * <br/>
+ * Parser callback is called in the calling thread and receives the same notifications as with
+ * {@link StreamingServiceMessageParser}. Reader can be used by several threads at once if it is not reconfigured.
+ * @see ServiceMessageLogWriter
+ */
+public class ServiceMessageLogReader {
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+  public static final int PIPELINE_DEPTH = 4;
+
+  @NotNull private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @NotNull private final ServiceMessageLogCodec myCodec;
+  @NotNull private final ServiceMessageParser myParser;
+  private volatile int myBlockSize = DEFAULT_BLOCK_SIZE;
+  private volatile boolean myPipelined;
+  @Nullable private volatile ServiceMessageHolder myMessageHolder;
+
+  public ServiceMessageLogReader(@NotNull final ServiceMessageLogCodec codec) {
+    this(codec, new ServiceMessageParser());
+  }
+
+  /**
+   * @param codec compression format of the logs
+   * @param parser parser of the service messages found in the logs
+   */
+  public ServiceMessageLogReader(@NotNull final ServiceMessageLogCodec codec, @NotNull final ServiceMessageParser parser) {
+    myCodec = codec;
+    myParser = parser;
+  }
+
+  public int getBlockSize() {
+    return myBlockSize;
+  }
+
+  /**
+   * @param blockSize number of decompressed bytes passed to the parser at once
+   */
+  public void setBlockSize(final int blockSize) {
+    if (blockSize <= 0) throw new IllegalArgumentException("Block size should be positive: " + blockSize);
+    myBlockSize = blockSize;
+  }
+
+  public boolean isPipelined() {
+    return myPipelined;
+  }
+
+  /**
+   * @param pipelined true to decompress the log in a background thread, false to decompress it in the calling thread
+   */
+  public void setPipelined(final boolean pipelined) {
+    myPipelined = pipelined;
+  }
+
+  /**
+   * Enables reuse of the parsed messages, see {@link StreamingServiceMessageParser#setMessageHolder(ServiceMessageHolder)}.
+   * Holder is not thread-safe, so the reader with a holder cannot be used by several threads at once.
+   */
+  public void setMessageHolder(@Nullable final ServiceMessageHolder messageHolder) {
+    myMessageHolder = messageHolder;
+  }
+
+  /**
+   * Parses the compressed log.
+   * @param compressed stream with the compressed log, is not closed
+   * @param callback parser callback
+   * @throws IOException if reading or decompression failed
+   */
+  public void parse(@NotNull final InputStream compressed, @NotNull final ServiceMessageParserCallback callback) throws IOException {
+    final int blockSize = myBlockSize;
+    final StreamingServiceMessageParser parser =
+      new StreamingServiceMessageParser(callback, StreamingServiceMessageParser.DEFAULT_MAX_MESSAGE_LENGTH, myParser);
+    parser.setMessageHolder(myMessageHolder);
+
+    // decompressing stream is closed to release the resources of the codec, but the compressed stream is not
+    final InputStream decompressed = myCodec.decompress(new FilterInputStream(compressed) {
+      @Override
+      public void close() {
+      }
+    });
+    InputStream source = decompressed;
+    try {
+      if (myPipelined) source = new PipelinedInputStream(decompressed, blockSize);
+      final Reader reader = new InputStreamReader(source, UTF8);
+      final char[] chars = new char[blockSize];
+      int read;
+      while ((read = reader.read(chars)) != -1) {
+        parser.append(chars, 0, read);
+      }
+      parser.finish();
+    } finally {
+      // stops the background thread before the decompressing stream is closed
+      if (source != decompressed) source.close();
+      decompressed.close();
+    }
+  }
+
+  /**
+   * Reads blocks of the source stream in a background thread.
+   */
+  private static class PipelinedInputStream extends InputStream {
+    @NotNull private static final Block END = new Block(new byte[0], 0, null);
+
+    @NotNull private final InputStream mySource;
+    private final int myBlockSize;
+    @NotNull private final BlockingQueue<Block> myBlocks = new ArrayBlockingQueue<Block>(PIPELINE_DEPTH);
+    /** arrays of the parsed blocks which can be reused */
+    @NotNull private final Queue<byte[]> myFreeArrays = new ConcurrentLinkedQueue<byte[]>();
+    @NotNull private final Thread myThread;
+    private volatile boolean myStopped;
+    @Nullable private Block myBlock;
+    private int myPos;
+
+    private PipelinedInputStream(@NotNull final InputStream source, final int blockSize) {
+      mySource = source;
+      myBlockSize = blockSize;
+      myThread = new Thread(new Runnable() {
+        public void run() {
+          readBlocks();
+        }
+      }, "Service message log decompressor");
+      myThread.setDaemon(true);
+      myThread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) return 0;
+      Block block = myBlock;
+      if (block == null || myPos == block.myLength) {
+        block = nextBlock();
+        if (block == null) return -1;
+      }
+      final int count = Math.min(len, block.myLength - myPos);
+      System.arraycopy(block.myData, myPos, b, off, count);
+      myPos += count;
+      return count;
+    }
+
+    @Nullable
+    private Block nextBlock() throws IOException {
+      if (myBlock == END) return null;
+      if (myBlock != null) {
+        if (myBlock.myError != null) throw myBlock.myError;
+        myFreeArrays.offer(myBlock.myData);
+      }
+
+      final Block block;
+      try {
+        block = myBlocks.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for decompressed service message log");
+      }
+      myBlock = block;
+      myPos = 0;
+      if (block.myError != null) throw block.myError;
+      return block == END ? null : block;
+    }
+
+    /**
+     * Stops the background thread, the source stream is not closed. The thread is not interrupted, since interruption
+     * closes an interruptible channel under the compressed stream, so this call waits until the read of the source
+     * in progress returns. The queue is drained to release the thread waiting for a free place in it.
+     */
+    @Override
+    public void close() {
+      myStopped = true;
+      boolean interrupted = false;
+      while (myThread.isAlive()) {
+        myBlocks.clear();
+        try {
+          myThread.join(100);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void readBlocks() {
+      try {
+        while (!myStopped) {
+          byte[] data = myFreeArrays.poll();
+          if (data == null) data = new byte[myBlockSize];
+          final int length = readBlock(data);
+          if (length > 0) myBlocks.put(new Block(data, length, null));
+          if (length < data.length) {
+            myBlocks.put(END);
+            return;
+          }
+        }
+      } catch (IOException e) {
+        putError(e);
+      } catch (RuntimeException e) {
+        final IOException error = new IOException("Failed to decompress service message log: " + e.getMessage());
+        error.initCause(e);
+        putError(error);
+      } catch (InterruptedException e) {
+        // the thread is interrupted by the code outside the reader, reading is stopped
+      }
+    }
+
+    /**
+     * @return number of bytes read, less than the array length only at the end of the source
+     */
+    private int readBlock(@NotNull final byte[] data) throws IOException {
+      int length = 0;
+      while (length < data.length) {
+        final int read = mySource.read(data, length, data.length - length);
+        if (read == -1) break;
+        length += read;
+      }
+      return length;
+    }
+
+    private void putError(@NotNull final IOException error) {
+      try {
+        myBlocks.put(new Block(new byte[0], 0, error));
+      } catch (InterruptedException e) {
+        // the thread is interrupted by the code outside the reader, reading is stopped
+      }
+    }
+  }
+
+  private static class Block {
+    @NotNull private final byte[] myData;
+    private final int myLength;
+    @Nullable private final IOException myError;
+
+    private Block(@NotNull final byte[] data, final int length, @Nullable final IOException error) {
+      myData = data;
+      myLength = length;
+      myError = error;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes compressed logs with service messages in UTF-8 encoding, which can be parsed by {@link ServiceMessageLogReader}.
+ * Messages are serialized directly to the compressing stream, the log text is not created.
+ * <br/>
+ * Instances are not thread-safe. To write messages from several threads and compress them in a background thread
+ * use {@link ServiceMessageWriter} with the stream returned by {@link ServiceMessageLogCodec#compress(OutputStream)}.
+ */
+public class ServiceMessageLogWriter implements Closeable, Flushable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @NotNull private final OutputStream myOut;
+  @NotNull private final ServiceMessageEncoder myEncoder = new ServiceMessageEncoder();
+  @NotNull private final byte[] myLineSeparator = System.getProperty("line.separator", "\n").getBytes();
+
+  /**
+   * @param target stream for the compressed log, it is closed by {@link #close()}
+   * @param codec compression format of the log
+   * @throws IOException if the compressing stream cannot be created
+   */
+  public ServiceMessageLogWriter(@NotNull final OutputStream target, @NotNull final ServiceMessageLogCodec codec) throws IOException {
+    myOut = new BufferedOutputStream(codec.compress(target), BUFFER_SIZE);
+  }
+
+  /**
+   * Writes the message followed by the line separator.
+   * @param message message to write
+   * @throws IOException if the stream fails
+   */
+  public void write(@NotNull final ServiceMessage message) throws IOException {
+    myEncoder.write(message, myOut);
+    myOut.write(myLineSeparator);
+  }
+
+  /**
+   * Writes regular text as is.
+   * @param text text to write
+   * @throws IOException if the stream fails
+   */
+  public void writeText(@NotNull final CharSequence text) throws IOException {
+    myEncoder.writeText(text, myOut);
+  }
+
+  /**
+   * Flushes the written data to the compressing stream and flushes it. Compressing streams can keep
+   * some of the data until the log is closed, e.g. {@link java.util.zip.GZIPOutputStream} does so.
+   * @throws IOException if the stream fails
+   */
+  public void flush() throws IOException {
+    myOut.flush();
+  }
+
+  /**
+   * Finishes the compressed log and closes the target stream.
+   * @throws IOException if the stream fails
+   */
+  public void close() throws IOException {
+    myOut.close();
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Service message parser with configurable parse mode.
+ * Parser with default settings works the same way as {@link ServiceMessage#parse(String)} and
+ * {@link ServiceMessage#parse(String, ServiceMessageParserCallback)}.
+ * <br/>
+ * Parser can be shared between threads once it is configured.
+ */
+public class ServiceMessageParser {
+  private boolean myLazyAttributes;
+  @Nullable private ServiceMessageFactoryRegistry myFactoryRegistry;
+  @Nullable private ServiceMessageFilter myFilter;
+  private int myMaxMessageLength = Integer.MAX_VALUE;
+  @Nullable private ServiceMessageDictionary myDictionary;
+
+  /**
+   * @return true if attribute values are unescaped on demand
+   * @see #setLazyAttributes(boolean)
+   */
+  public boolean isLazyAttributes() {
+    return myLazyAttributes;
+  }
+
+  /**
+   * Enables or disables lazy attributes mode. In this mode parsed messages keep offsets of attribute values in the
+   * message text and unescape every value on the first access via getters or {@link ServiceMessage#getAttributes()}.
+   * Values of "flowId", "timestamp" and reserved attributes are still unescaped during parsing.
+   * Parse errors are reported in the same way as in normal mode.
+   * <br/>
+   * This mode is useful when only a few attributes of the messages are used, e.g. when messages are routed by name and flow id.
+   * @param lazyAttributes true to enable lazy mode
+   */
+  public void setLazyAttributes(final boolean lazyAttributes) {
+    myLazyAttributes = lazyAttributes;
+  }
+
+  /**
+   * @return registry of the service message factories used by this parser
+   */
+  @NotNull
+  public ServiceMessageFactoryRegistry getFactoryRegistry() {
+    final ServiceMessageFactoryRegistry registry = myFactoryRegistry;
+    return registry == null ? ServiceMessageFactoryRegistry.getDefault() : registry;
+  }
+
+  /**
+   * Sets registry of the service message factories.
+   * @param factoryRegistry registry or null to use {@link ServiceMessageFactoryRegistry#getDefault()}
+   */
+  public void setFactoryRegistry(@Nullable final ServiceMessageFactoryRegistry factoryRegistry) {
+    myFactoryRegistry = factoryRegistry;
+  }
+
+  /**
+   * @return filter of the service messages or null if all messages are parsed
+   */
+  @Nullable
+  public ServiceMessageFilter getFilter() {
+    return myFilter;
+  }
+
+  /**
+   * Sets filter of the service messages for parsing of mixed text. Messages which are not accepted by the filter are
+   * either dropped or reported as regular text, see {@link ServiceMessageFilter#isReportSkipped()}.
+   * @param filter filter or null to parse all messages
+   */
+  public void setFilter(@Nullable final ServiceMessageFilter filter) {
+    myFilter = filter;
+  }
+
+  /**
+   * @return maximum length of the service message including "##teamcity[" and "]"
+   * @see #setMaxMessageLength(int)
+   */
+  public int getMaxMessageLength() {
+    return myMaxMessageLength;
+  }
+
+  /**
+   * Sets maximum length of the service message in mixed text. If "]" is not found within this length after "##teamcity[",
+   * the candidate is treated as regular text and the search of service messages continues right after its start.
+   * Without the limit the end of a message is searched for up to the end of the text.
+   * <br/>
+   * {@link StreamingServiceMessageParser} and {@link ServiceMessageByteParser} use the smaller of this value and their own limit.
+   * @param maxMessageLength maximum length, {@link Integer#MAX_VALUE} (default) for no limit
+   */
+  public void setMaxMessageLength(final int maxMessageLength) {
+    if (maxMessageLength <= ServiceMessage.SERVICE_MESSAGE_START.length()) {
+      throw new IllegalArgumentException("Too small maximum message length: " + maxMessageLength);
+    }
+    myMaxMessageLength = maxMessageLength;
+  }
+
+  /**
+   * @return dictionary of the parsed strings or null if strings are not shared between messages
+   * @see #setDictionary(ServiceMessageDictionary)
+   */
+  @Nullable
+  public ServiceMessageDictionary getDictionary() {
+    return myDictionary;
+  }
+
+  /**
+   * Sets dictionary for the strings of the parsed messages. Message names and attribute names are taken from the dictionary,
+   * attribute values are taken from it unless {@link #setLazyAttributes(boolean) lazy attributes} mode is enabled, so equal
+   * strings of the retained messages are kept once. Names are looked up without copying them from the message text.
+   * <br/>
+   * Dictionary can be shared between parsers working in different threads.
+   * @param dictionary dictionary or null to create new strings for every message
+   */
+  public void setDictionary(@Nullable final ServiceMessageDictionary dictionary) {
+    myDictionary = dictionary;
+  }
+
+  /**
+   * @param body trimmed non empty message body
+   * @return true if the message should be parsed according to the filter
+   */
+  boolean accepts(@NotNull final String body) {
+    final ServiceMessageFilter filter = myFilter;
+    return filter == null || filter.accepts(body);
+  }
+
+  /**
+   * @param buffer buffer with the message in UTF-8 encoding
+   * @param from start of the trimmed non empty message body
+   * @param to end of the message body
+   * @return false if the message is not accepted by the filter, true if its decoded body should be checked with {@link #accepts(String)}
+   */
+  boolean mayAccept(@NotNull final ByteBuffer buffer, final int from, final int to) {
+    final ServiceMessageFilter filter = myFilter;
+    return filter == null || filter.mayAccept(buffer, from, to);
+  }
+
+  /**
+   * Parses single service message.
+   * @param text text to parse
+   * @return parsed message or null if the text is not a service message
+   * @throws ParseException if text is a service message but its arguments cannot be parsed
+   * @see ServiceMessage#parse(String)
+   */
+  @Nullable
+  public ServiceMessage parse(@NotNull final String text) throws ParseException {
+    return ServiceMessage.parse(text, this, null);
+  }
+
+  /**
+   * Parses single service message into the message instance kept in the holder.
+   * @param text text to parse
+   * @param holder holder of the reusable messages owned by the current thread
+   * @return parsed message which is valid until the next parse with the same holder, or null if the text is not a service message
+   * @throws ParseException if text is a service message but its arguments cannot be parsed
+   * @see ServiceMessageHolder
+   */
+  @Nullable
+  public ServiceMessage parse(@NotNull final String text, @NotNull final ServiceMessageHolder holder) throws ParseException {
+    return ServiceMessage.parse(text, this, holder);
+  }
+
+  /**
+   * Parses mixed text (text that can contain service messages inside) and notifies the callback.
+   * @param mixedText text with service messages
+   * @param parserCallback callback
+   * @see ServiceMessage#parse(String, ServiceMessageParserCallback)
+   */
+  public void parse(@NotNull final String mixedText, @NotNull final ServiceMessageParserCallback parserCallback) {
+    ServiceMessage.parse(mixedText, parserCallback, this, null);
+  }
+
+  /**
+   * Parses mixed text and notifies the callback with the message instances kept in the holder.
+   * The callback must not keep the messages after it returns.
+   * @param mixedText text with service messages
+   * @param holder holder of the reusable messages owned by the current thread
+   * @param parserCallback callback
+   * @see ServiceMessageHolder
+   */
+  public void parse(@NotNull final String mixedText,
+                    @NotNull final ServiceMessageHolder holder,
+                    @NotNull final ServiceMessageParserCallback parserCallback) {
+    ServiceMessage.parse(mixedText, parserCallback, this, holder);
+  }
+
+  /**
+   * Parses body of the service message (text between "##teamcity[" and "]").
+   * @param body trimmed non empty message body
+   * @param holder holder of the reusable messages or null to create a new message
+   * @return parsed message
+   * @throws ParseException if the message arguments cannot be parsed
+   */
+  @NotNull
+  ServiceMessage parseMessageBody(@NotNull final String body, @Nullable final ServiceMessageHolder holder) throws ParseException {
+    return ServiceMessage.doParse(body, this, holder);
+  }
+
+  /**
+   * Parses body of the service message and notifies the callback either with the parsed message or with the parse exception.
+   * @param body trimmed non empty message body
+   * @param holder holder of the reusable messages or null to create a new message
+   * @param parserCallback callback
+   */
+  void parseMessageBody(@NotNull final String body,
+                        @Nullable final ServiceMessageHolder holder,
+                        @NotNull final ServiceMessageParserCallback parserCallback) {
+    ServiceMessage.parseServiceMessage(body, parserCallback, this, holder);
+  }
+}
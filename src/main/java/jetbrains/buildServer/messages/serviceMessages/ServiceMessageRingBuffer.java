@@ -0,0 +1,353 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parser callback which passes the parsed service messages to the handlers of the register in a background thread
+ * through a preallocated ring buffer of fixed capacity, so the memory used by the messages waiting for the handlers is bounded.
+ * <br/>
+ * Messages are ordered by sequence numbers. Producers (parsing threads) claim the next sequence with CAS, put the message
+ * to the slot of the sequence and mark the slot as published. The consumer thread handles published messages in the
+ * sequence order and moves the consumed sequence, which frees the slots. No locks are taken while the buffer is neither
+ * full nor empty, the {@link WaitStrategy} defines how the threads wait otherwise.
+ * <br/>
+ * When the buffer is full producers wait for the consumer or drop the message, see {@link OverflowPolicy}.
+ * Messages are handled after the callback returns, so they must not be reused, see {@link ServiceMessageHolder}.
+ * <br/>
+ * Regular text and parse errors are passed to the delegate callback, if any, in the parsing thread.
+ * Exceptions thrown by the handlers are passed to the uncaught exception handler of the consumer thread.
+ * Errors other than {@link LinkageError} stop the consumer thread and close the buffer.
+ * @see AsyncServiceMessageDispatcher
+ */
+public class ServiceMessageRingBuffer implements ServiceMessageParserCallback, Closeable {
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private static final int MAX_BATCH_SIZE = 256;
+  private static final long FLUSH_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(BackgroundThreads.CHECK_INTERVAL_MILLIS);
+
+  /**
+   * How the producers wait for the free slots and the consumer waits for the messages.
+   */
+  public enum WaitStrategy {
+    /** wait on a lock condition until signalled, the slowest reaction but no CPU is used while waiting */
+    BLOCKING,
+    /** busy spin, the fastest reaction but the waiting thread occupies a CPU */
+    SPINNING,
+    /** spin calling {@link Thread#yield()}, lets other threads run on the CPU while waiting */
+    YIELDING
+  }
+
+  @NotNull private final ConcurrentServiceMessagesRegister myRegister;
+  @Nullable private final ServiceMessageParserCallback myDelegate;
+  @NotNull private final WaitStrategy myWaitStrategy;
+  @NotNull private final OverflowPolicy myOverflowPolicy;
+
+  @NotNull private final ServiceMessage[] mySlots;
+  /** number of the pass over the buffer (sequence / capacity) in which the slot was published */
+  @NotNull private final AtomicIntegerArray myPublishedRounds;
+  private final int myCapacity;
+  private final int myMask;
+  private final int myRoundShift;
+  /** last claimed sequence */
+  @NotNull private final AtomicLong myClaimed = new AtomicLong(-1);
+  /** last sequence handled by the consumer */
+  @NotNull private final AtomicLong myConsumed = new AtomicLong(-1);
+  @NotNull private final AtomicLong myDroppedCount = new AtomicLong();
+
+  /** number of threads waiting on {@link #mySignal}, waiting threads are signalled only if it is not zero */
+  @NotNull private final AtomicInteger myWaiters = new AtomicInteger();
+  @NotNull private final ReentrantLock myLock = new ReentrantLock();
+  @NotNull private final Condition mySignal = myLock.newCondition();
+
+  private volatile boolean myClosed;
+  @NotNull private final Thread myThread;
+
+  public ServiceMessageRingBuffer(@NotNull final ConcurrentServiceMessagesRegister register) {
+    this(register, null, DEFAULT_CAPACITY, WaitStrategy.BLOCKING, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * @param register register with the handlers
+   * @param delegate callback for the regular text and parse errors
+   * @param capacity number of slots, is rounded up to a power of 2
+   * @param waitStrategy how the threads wait for the slots and the messages
+   * @param overflowPolicy what to do with the message when the buffer is full
+   */
+  public ServiceMessageRingBuffer(@NotNull final ConcurrentServiceMessagesRegister register,
+                                  @Nullable final ServiceMessageParserCallback delegate,
+                                  final int capacity,
+                                  @NotNull final WaitStrategy waitStrategy,
+                                  @NotNull final OverflowPolicy overflowPolicy) {
+    if (capacity <= 0 || capacity > 1 << 30) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    myRegister = register;
+    myDelegate = delegate;
+    myWaitStrategy = waitStrategy;
+    myOverflowPolicy = overflowPolicy;
+
+    myRoundShift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    myCapacity = 1 << myRoundShift;
+    myMask = myCapacity - 1;
+    mySlots = new ServiceMessage[myCapacity];
+    myPublishedRounds = new AtomicIntegerArray(myCapacity);
+    for (int i = 0; i < myCapacity; i++) {
+      myPublishedRounds.set(i, -1);
+    }
+
+    myThread = new Thread(new Runnable() {
+      public void run() {
+        consume();
+      }
+    }, "Service message ring buffer consumer");
+    myThread.setDaemon(true);
+    myThread.start();
+  }
+
+  public void regularText(@NotNull final String text) {
+    if (myDelegate != null) myDelegate.regularText(text);
+  }
+
+  /**
+   * Publishes the message to the buffer.
+   * @throws IllegalStateException if the buffer is closed or the thread was interrupted while waiting for a free slot
+   */
+  public void serviceMessage(@NotNull final ServiceMessage message) {
+    long sequence;
+    while (true) {
+      if (myClosed) throw new IllegalStateException("Ring buffer is closed");
+      final long claimed = myClaimed.get();
+      sequence = claimed + 1;
+      if (!hasFreeSlot(sequence)) {
+        if (myOverflowPolicy == OverflowPolicy.DROP) {
+          myDroppedCount.incrementAndGet();
+          return;
+        }
+        waitForFreeSlot(sequence);
+        continue;
+      }
+      if (myClaimed.compareAndSet(claimed, sequence)) break;
+    }
+
+    final int index = (int)sequence & myMask;
+    mySlots[index] = message;
+    // the slot is written before the volatile write, so the consumer reads it after reading the round
+    myPublishedRounds.set(index, round(sequence));
+    signalWaiters();
+  }
+
+  public void parseException(@NotNull final ParseException parseException, @NotNull final String text) {
+    if (myDelegate != null) myDelegate.parseException(parseException, text);
+  }
+
+  /**
+   * @return number of slots in the buffer
+   */
+  public int getCapacity() {
+    return myCapacity;
+  }
+
+  /**
+   * @return number of messages published but not handled yet
+   */
+  public int getSize() {
+    return (int)Math.max(0, myClaimed.get() - myConsumed.get());
+  }
+
+  /**
+   * @return number of messages discarded because the buffer was full
+   */
+  public long getDroppedCount() {
+    return myDroppedCount.get();
+  }
+
+  /**
+   * Waits until all messages published before this call are handled.
+   * @throws InterruptedIOException if the thread was interrupted
+   */
+  public void flush() throws InterruptedIOException {
+    final long target = myClaimed.get();
+    try {
+      while (myConsumed.get() < target && myThread.isAlive()) {
+        if (myWaitStrategy == WaitStrategy.BLOCKING) {
+          awaitSignal(FLUSH_CHECK_INTERVAL_NANOS);
+        } else {
+          pause();
+        }
+      }
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message ring buffer");
+    }
+  }
+
+  /**
+   * Handles all published messages and stops the consumer thread. Messages published concurrently with this call can be lost.
+   * @throws InterruptedIOException if the thread was interrupted
+   */
+  public void close() throws InterruptedIOException {
+    myClosed = true;
+    signalAll();
+    try {
+      myThread.join();
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message ring buffer");
+    }
+  }
+
+  private void consume() {
+    long next = 0;
+    try {
+      while (true) {
+        if (!isPublished(next)) {
+          if (isDrained(next)) return;
+          waitForMessage(next);
+          continue;
+        }
+
+        long last = next;
+        while (last - next < MAX_BATCH_SIZE - 1 && isPublished(last + 1)) {
+          last++;
+        }
+        for (long sequence = next; sequence <= last; sequence++) {
+          final int index = (int)sequence & myMask;
+          final ServiceMessage message = mySlots[index];
+          mySlots[index] = null;
+          BackgroundThreads.handle(myRegister, message, myThread);
+        }
+        myConsumed.set(last);
+        signalWaiters();
+        next = last + 1;
+      }
+    } catch (InterruptedException e) {
+      // consumer is stopped
+    } finally {
+      // the buffer is closed however the consumer stops, so the producers do not wait for it
+      myClosed = true;
+      signalAll();
+    }
+  }
+
+  private boolean hasFreeSlot(final long sequence) {
+    return sequence - myConsumed.get() <= myCapacity;
+  }
+
+  private boolean isPublished(final long sequence) {
+    return myPublishedRounds.get((int)sequence & myMask) == round(sequence);
+  }
+
+  /**
+   * @return true if the buffer is closed and all claimed sequences before the specified one are handled
+   */
+  private boolean isDrained(final long next) {
+    return myClosed && myClaimed.get() < next;
+  }
+
+  private int round(final long sequence) {
+    return (int)(sequence >>> myRoundShift);
+  }
+
+  private void waitForFreeSlot(final long sequence) {
+    try {
+      if (myWaitStrategy == WaitStrategy.BLOCKING) {
+        myLock.lock();
+        myWaiters.incrementAndGet();
+        try {
+          while (!hasFreeSlot(sequence) && !myClosed) {
+            mySignal.await();
+          }
+        } finally {
+          myWaiters.decrementAndGet();
+          myLock.unlock();
+        }
+      } else {
+        while (!hasFreeSlot(sequence) && !myClosed) {
+          pause();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for service message ring buffer");
+    }
+  }
+
+  private void waitForMessage(final long sequence) throws InterruptedException {
+    if (myWaitStrategy == WaitStrategy.BLOCKING) {
+      myLock.lock();
+      myWaiters.incrementAndGet();
+      try {
+        while (!isPublished(sequence) && !isDrained(sequence)) {
+          mySignal.await();
+        }
+      } finally {
+        myWaiters.decrementAndGet();
+        myLock.unlock();
+      }
+    } else {
+      while (!isPublished(sequence) && !isDrained(sequence)) {
+        pause();
+      }
+    }
+  }
+
+  private void awaitSignal(final long timeoutNanos) throws InterruptedException {
+    myLock.lock();
+    myWaiters.incrementAndGet();
+    try {
+      mySignal.awaitNanos(timeoutNanos);
+    } finally {
+      myWaiters.decrementAndGet();
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up the threads waiting on the condition, the waiters counter is read after the sequence is changed,
+   * so a thread which checked the sequence before the change is either counted or not waiting yet.
+   */
+  private void signalWaiters() {
+    if (myWaiters.get() == 0) return;
+    myLock.lock();
+    try {
+      mySignal.signalAll();
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  private void signalAll() {
+    myLock.lock();
+    try {
+      mySignal.signalAll();
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  private void pause() {
+    if (myWaitStrategy == WaitStrategy.YIELDING) Thread.yield();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Service message with fixed name and attributes, values of some attributes are passed on every formatting.
+ * Constant parts of the message text are escaped once, so formatting escapes only the passed values.
+ * The result is the same as {@link ServiceMessage#asString(String, java.util.Map)} with the attributes in the template order.
+ * <pre>
+ * ServiceMessageTemplate testStarted = new ServiceMessageTemplate.Builder("testStarted")
+ *   .slot("name").slot("flowId").attribute("captureStandardOutput", "true").build();
+ * out.println(testStarted.format(testName, flowId));
+ * </pre>
+ * Templates are immutable and thread-safe.
+ */
+public final class ServiceMessageTemplate {
+  /** constant text before the first slot, between the slots and after the last slot */
+  @NotNull private final String[] myConstants;
+  /** escaped " name='" of every slot */
+  @NotNull private final String[] mySlotHeaders;
+  @NotNull private final String[] mySlotNames;
+  private final int myConstantsLength;
+
+  private ServiceMessageTemplate(@NotNull final String[] constants, @NotNull final String[] slotHeaders, @NotNull final String[] slotNames) {
+    myConstants = constants;
+    mySlotHeaders = slotHeaders;
+    mySlotNames = slotNames;
+    int length = 0;
+    for (String constant : constants) {
+      length += constant.length();
+    }
+    myConstantsLength = length;
+  }
+
+  /**
+   * @return names of the attributes which values are passed on formatting, in the template order
+   */
+  @NotNull
+  public String[] getSlotNames() {
+    return mySlotNames.clone();
+  }
+
+  /**
+   * @param values values of the slots in the template order, attributes with null values are omitted
+   * @return service message text
+   */
+  @NotNull
+  public String format(@NotNull final String... values) {
+    checkValues(values);
+    int length = myConstantsLength;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) length += mySlotHeaders[i].length() + values[i].length() + 1;
+    }
+
+    final StringBuilder text = new StringBuilder(length + 16);
+    try {
+      write(text, values);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Writes the same text as {@link #format(String...)} to the target.
+   * @param target target
+   * @param values values of the slots in the template order, attributes with null values are omitted
+   * @throws IOException if the target fails
+   */
+  public void writeTo(@NotNull final Appendable target, @NotNull final String... values) throws IOException {
+    checkValues(values);
+    write(target, values);
+  }
+
+  private void write(@NotNull final Appendable target, @NotNull final String[] values) throws IOException {
+    target.append(myConstants[0]);
+    for (int i = 0; i < values.length; i++) {
+      final String value = values[i];
+      if (value != null) {
+        target.append(mySlotHeaders[i]);
+        MapSerializerUtil.escapeStr(target, value, MapSerializerUtil.STD_ESCAPER);
+        target.append('\'');
+      }
+      target.append(myConstants[i + 1]);
+    }
+  }
+
+  private void checkValues(@NotNull final String[] values) {
+    if (values.length != mySlotNames.length) {
+      throw new IllegalArgumentException("Expected " + mySlotNames.length + " values, but got " + values.length);
+    }
+  }
+
+  /**
+   * Collects attributes of the template in the order they appear in the message.
+   */
+  public static class Builder {
+    @NotNull private final List<String> myConstants = new ArrayList<String>();
+    @NotNull private final List<String> mySlotHeaders = new ArrayList<String>();
+    @NotNull private final List<String> mySlotNames = new ArrayList<String>();
+    @NotNull private final StringBuilder myConstant = new StringBuilder();
+
+    /**
+     * @param messageName name of the message
+     */
+    public Builder(@NotNull final String messageName) {
+      myConstant.append(ServiceMessage.SERVICE_MESSAGE_START).append(messageName);
+    }
+
+    /**
+     * Adds attribute with the constant value.
+     */
+    @NotNull
+    public Builder attribute(@NotNull final String name, @Nullable final String value) {
+      myConstant.append(' ');
+      try {
+        MapSerializerUtil.writeProperty(myConstant, name, value, MapSerializerUtil.STD_ESCAPER);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return this;
+    }
+
+    /**
+     * Adds attribute which value is passed on formatting.
+     */
+    @NotNull
+    public Builder slot(@NotNull final String name) {
+      myConstants.add(myConstant.toString());
+      myConstant.setLength(0);
+      mySlotHeaders.add(" " + MapSerializerUtil.escapeStr(name, MapSerializerUtil.STD_ESCAPER) + "='");
+      mySlotNames.add(name);
+      return this;
+    }
+
+    @NotNull
+    public ServiceMessageTemplate build() {
+      final List<String> constants = new ArrayList<String>(myConstants);
+      constants.add(myConstant + ServiceMessage.SERVICE_MESSAGE_END);
+      return new ServiceMessageTemplate(constants.toArray(new String[constants.size()]),
+                                        mySlotHeaders.toArray(new String[mySlotHeaders.size()]),
+                                        mySlotNames.toArray(new String[mySlotNames.size()]));
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes service messages to the stream in a background thread, one message per line in UTF-8 encoding.
+ * Messages from any number of threads are put to a bounded queue, the background thread writes them in batches
+ * and flushes the stream once per batch instead of once per message. The stream is flushed when
+ * the batch size is reached, when the flush interval has passed since the first not flushed message or on {@link #flush()}.
+ * <br/>
+ * Messages are serialized in the background thread, so they should not be changed after they are written.
+ * Errors of the stream are reported by the next call of any method of the writer, the messages written after
+ * the error are discarded.
+ */
+public class ServiceMessageWriter implements Closeable, Flushable {
+  public static final int DEFAULT_QUEUE_CAPACITY = 8 * 1024;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @NotNull private final OutputStream myOut;
+  @NotNull private final BlockingQueue<Object> myQueue;
+  @NotNull private final OverflowPolicy myOverflowPolicy;
+  private final int myMaxBatchSize;
+  private final long myFlushIntervalNanos;
+  @NotNull private final byte[] myLineSeparator = System.getProperty("line.separator", "\n").getBytes();
+  @NotNull private final Thread myThread;
+  @NotNull private final AtomicBoolean myClosed = new AtomicBoolean();
+  @NotNull private final AtomicLong myDroppedCount = new AtomicLong();
+  @Nullable private volatile IOException myError;
+
+  public ServiceMessageWriter(@NotNull final OutputStream out) {
+    this(out, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * @param out target stream, it is closed by {@link #close()}
+   * @param queueCapacity maximum number of messages waiting to be written
+   * @param overflowPolicy what to do when the queue is full
+   */
+  public ServiceMessageWriter(@NotNull final OutputStream out, final int queueCapacity, @NotNull final OverflowPolicy overflowPolicy) {
+    this(out, queueCapacity, overflowPolicy, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+  }
+
+  /**
+   * @param out target stream, it is closed by {@link #close()}
+   * @param queueCapacity maximum number of messages waiting to be written
+   * @param overflowPolicy what to do when the queue is full
+   * @param maxBatchSize maximum number of messages written between flushes of the stream
+   * @param flushIntervalMillis maximum time a written message can stay not flushed, 0 to flush as soon as the queue is empty
+   */
+  public ServiceMessageWriter(@NotNull final OutputStream out,
+                              final int queueCapacity,
+                              @NotNull final OverflowPolicy overflowPolicy,
+                              final int maxBatchSize,
+                              final long flushIntervalMillis) {
+    if (maxBatchSize <= 0) throw new IllegalArgumentException("Batch size should be positive: " + maxBatchSize);
+    if (flushIntervalMillis < 0) throw new IllegalArgumentException("Negative flush interval: " + flushIntervalMillis);
+    myOut = out;
+    myQueue = new ArrayBlockingQueue<Object>(queueCapacity);
+    myOverflowPolicy = overflowPolicy;
+    myMaxBatchSize = maxBatchSize;
+    myFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    myThread = new Thread(new Runnable() {
+      public void run() {
+        writeMessages();
+      }
+    }, "Service message writer");
+    myThread.setDaemon(true);
+    myThread.start();
+  }
+
+  /**
+   * Puts the message to the queue.
+   * @param message message to write
+   * @throws IOException if writing of the previous messages failed, the background thread has stopped
+   * or the thread was interrupted while waiting for the space in the queue
+   * @throws IllegalStateException if the writer is closed
+   */
+  public void write(@NotNull final ServiceMessage message) throws IOException {
+    if (myClosed.get()) throw new IllegalStateException("Writer is closed");
+    checkError();
+
+    if (myOverflowPolicy == OverflowPolicy.DROP) {
+      if (!myQueue.offer(message)) {
+        // a full queue of the stopped thread is never processed, the messages are not dropped because of the load
+        if (!myThread.isAlive()) throw stopped();
+        myDroppedCount.incrementAndGet();
+      }
+    } else {
+      put(message);
+    }
+  }
+
+  /**
+   * Waits until all messages written before this call are written to the stream and flushes the stream.
+   * @throws IOException if writing failed or the thread was interrupted
+   */
+  public void flush() throws IOException {
+    if (myClosed.get()) return;
+    final CountDownLatch request = new CountDownLatch(1);
+    put(request);
+    try {
+      // the writer can be closed concurrently, then the request is never processed
+      BackgroundThreads.await(request, myThread);
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message writer");
+    }
+    checkError();
+  }
+
+  /**
+   * Writes all queued messages, flushes and closes the stream and stops the background thread.
+   * Messages written concurrently with this call can be lost.
+   * @throws IOException if writing failed or the thread was interrupted
+   */
+  public void close() throws IOException {
+    if (!myClosed.compareAndSet(false, true)) return;
+    put(BackgroundThreads.CLOSE);
+    try {
+      myThread.join();
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message writer");
+    }
+    checkError();
+  }
+
+  /**
+   * @return number of messages discarded because the queue was full
+   */
+  public long getDroppedCount() {
+    return myDroppedCount.get();
+  }
+
+  private void put(@NotNull final Object item) throws IOException {
+    final boolean queued;
+    try {
+      queued = BackgroundThreads.put(myQueue, item, myThread);
+    } catch (InterruptedException e) {
+      throw BackgroundThreads.interrupted("service message writer");
+    }
+    if (!queued && item != BackgroundThreads.CLOSE) throw stopped();
+  }
+
+  @NotNull
+  private IOException stopped() {
+    final IOException error = myError;
+    return error != null ? error : new IOException("Service message writer thread has stopped");
+  }
+
+  private void checkError() throws IOException {
+    final IOException error = myError;
+    if (error != null) throw error;
+  }
+
+  private void writeMessages() {
+    final OutputStream out = new BufferedOutputStream(myOut, BUFFER_SIZE);
+    final ServiceMessageEncoder encoder = new ServiceMessageEncoder();
+    final List<Object> batch = new ArrayList<Object>(myMaxBatchSize);
+    int notFlushed = 0;
+    long flushDeadline = 0;
+    try {
+      while (true) {
+        final Object first;
+        if (notFlushed == 0) {
+          first = myQueue.take();
+        } else {
+          final long timeout = flushDeadline - System.nanoTime();
+          first = timeout > 0 ? myQueue.poll(timeout, TimeUnit.NANOSECONDS) : null;
+          if (first == null) {
+            flush(out);
+            notFlushed = 0;
+            continue;
+          }
+        }
+
+        batch.add(first);
+        myQueue.drainTo(batch, myMaxBatchSize - 1);
+        for (Object item : batch) {
+          if (item instanceof ServiceMessage) {
+            if (notFlushed == 0) flushDeadline = System.nanoTime() + myFlushIntervalNanos;
+            write(encoder, (ServiceMessage)item, out);
+            if (++notFlushed >= myMaxBatchSize) {
+              flush(out);
+              notFlushed = 0;
+            }
+          } else if (item instanceof CountDownLatch) {
+            flush(out);
+            notFlushed = 0;
+            ((CountDownLatch)item).countDown();
+          } else if (item == BackgroundThreads.CLOSE) {
+            flush(out);
+            close(out);
+            BackgroundThreads.releaseFlushRequests(myQueue);
+            return;
+          }
+        }
+        batch.clear();
+
+        if (notFlushed > 0 && System.nanoTime() - flushDeadline >= 0) {
+          flush(out);
+          notFlushed = 0;
+        }
+      }
+    } catch (InterruptedException e) {
+      setError(new InterruptedIOException("Service message writer thread was interrupted"));
+      BackgroundThreads.releaseFlushRequests(myQueue);
+    }
+  }
+
+  private void write(@NotNull final ServiceMessageEncoder encoder, @NotNull final ServiceMessage message, @NotNull final OutputStream out) {
+    if (myError != null) return;
+    try {
+      encoder.write(message, out);
+      out.write(myLineSeparator);
+    } catch (IOException e) {
+      setError(e);
+    } catch (RuntimeException e) {
+      final IOException error = new IOException("Failed to write service message: " + e.getMessage());
+      error.initCause(e);
+      setError(error);
+    }
+  }
+
+  private void flush(@NotNull final OutputStream out) {
+    if (myError != null) return;
+    try {
+      out.flush();
+    } catch (IOException e) {
+      setError(e);
+    }
+  }
+
+  private void close(@NotNull final OutputStream out) {
+    try {
+      out.close();
+    } catch (IOException e) {
+      setError(e);
+    }
+  }
+
+  private void setError(@NotNull final IOException error) {
+    if (myError == null) myError = error;
+  }
+}
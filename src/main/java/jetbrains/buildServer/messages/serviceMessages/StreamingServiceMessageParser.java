@@ -0,0 +1,226 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Incremental parser for mixed text (text that can contain service messages inside) which arrives in chunks.
+ * Chunks can be pushed with {@link #append(char[], int, int)} / {@link #append(CharSequence)} or pulled from
+ * a {@link Reader} with {@link #parse(Reader)}. Service messages split between chunks are handled correctly,
+ * only the unfinished tail of the text is kept between calls.
+ * <br/>
+ * Parser callback receives the same notifications as with {@link ServiceMessage#parse(String, ServiceMessageParserCallback)},
+ * except that regular text can be reported in several pieces.
+ * <br/>
+ * Unfinished service message longer than the maximum message length is treated as regular text,
+ * this keeps the memory used by the parser bounded.
+ * <br/>
+ * Instances are not thread-safe.
+ */
+public class StreamingServiceMessageParser {
+  public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final String SERVICE_MESSAGE_END = "]";
+
+  @NotNull private final ServiceMessageParserCallback myCallback;
+  private final int myMaxMessageLength;
+  @NotNull private final ServiceMessageParser myParser;
+  @NotNull private final StringBuilder myPending = new StringBuilder();
+  @Nullable private ServiceMessageHolder myMessageHolder;
+  /** remembers the scanned part of the unfinished message between the chunks */
+  @NotNull private final MessageEndScanner myEndScanner = new MessageEndScanner();
+
+  public StreamingServiceMessageParser(@NotNull final ServiceMessageParserCallback callback) {
+    this(callback, DEFAULT_MAX_MESSAGE_LENGTH);
+  }
+
+  /**
+   * @param callback parser callback
+   * @param maxMessageLength maximum length of the service message including "##teamcity[" and "]"
+   */
+  public StreamingServiceMessageParser(@NotNull final ServiceMessageParserCallback callback, final int maxMessageLength) {
+    this(callback, maxMessageLength, new ServiceMessageParser());
+  }
+
+  /**
+   * @param callback parser callback
+   * @param maxMessageLength maximum length of the service message including "##teamcity[" and "]"
+   * @param parser parser of the service messages found in the text
+   */
+  public StreamingServiceMessageParser(@NotNull final ServiceMessageParserCallback callback,
+                                       final int maxMessageLength,
+                                       @NotNull final ServiceMessageParser parser) {
+    if (maxMessageLength < ServiceMessage.SERVICE_MESSAGE_START.length() + SERVICE_MESSAGE_END.length()) {
+      throw new IllegalArgumentException("Too small maximum message length: " + maxMessageLength);
+    }
+    myCallback = callback;
+    myMaxMessageLength = maxMessageLength;
+    myParser = parser;
+  }
+
+  /**
+   * Enables reuse of the parsed messages: every parsed message is refilled in the instance kept in the holder
+   * and must not be kept by the callback after it returns.
+   * @param messageHolder holder of the reusable messages or null to create a new message every time
+   * @see ServiceMessageHolder
+   */
+  public void setMessageHolder(@Nullable final ServiceMessageHolder messageHolder) {
+    myMessageHolder = messageHolder;
+  }
+
+  /**
+   * Parses all text from the reader and calls {@link #finish()}. Reader is not closed.
+   * @param reader reader to parse
+   * @throws IOException if reading failed
+   */
+  public void parse(@NotNull final Reader reader) throws IOException {
+    final char[] buffer = new char[BUFFER_SIZE];
+    int read;
+    while ((read = reader.read(buffer)) != -1) {
+      append(buffer, 0, read);
+    }
+    finish();
+  }
+
+  /**
+   * Accepts next chunk of the text.
+   * @param chars chunk holder
+   * @param offset chunk offset
+   * @param length chunk length
+   */
+  public void append(@NotNull final char[] chars, final int offset, final int length) {
+    myPending.append(chars, offset, length);
+    process(false);
+  }
+
+  /**
+   * Accepts next chunk of the text.
+   * @param text chunk
+   */
+  public void append(@NotNull final CharSequence text) {
+    myPending.append(text);
+    process(false);
+  }
+
+  /**
+   * Notifies parser about the end of the text. Unfinished service message (if any) is reported as regular text.
+   * Parser can be used for the next text after this call.
+   */
+  public void finish() {
+    process(true);
+  }
+
+  /**
+   * Parses all text from the reader with the specified callback.
+   * @param reader reader to parse, is not closed
+   * @param callback callback
+   * @throws IOException if reading failed
+   */
+  public static void parse(@NotNull final Reader reader, @NotNull final ServiceMessageParserCallback callback) throws IOException {
+    new StreamingServiceMessageParser(callback).parse(reader);
+  }
+
+  /**
+   * Parses all text from the stream with the specified callback.
+   * @param stream stream to parse, is not closed
+   * @param charset charset of the text in the stream
+   * @param callback callback
+   * @throws IOException if reading failed
+   */
+  public static void parse(@NotNull final InputStream stream,
+                           @NotNull final Charset charset,
+                           @NotNull final ServiceMessageParserCallback callback) throws IOException {
+    parse(new InputStreamReader(stream, charset), callback);
+  }
+
+  private void process(final boolean endOfInput) {
+    final int length = myPending.length();
+    final int maxMessageLength = Math.min(myMaxMessageLength, myParser.getMaxMessageLength());
+    int pos = 0;
+    while (pos < length) {
+      final int start = myPending.indexOf(ServiceMessage.SERVICE_MESSAGE_START, pos);
+      if (start == -1) {
+        final int regularEnd = endOfInput ? length : length - getPartialStartLength(pos);
+        reportRegularText(pos, regularEnd);
+        pos = regularEnd;
+        break;
+      }
+
+      final int end = myEndScanner.findEnd(myPending, start + ServiceMessage.SERVICE_MESSAGE_START.length(),
+                                           (int)Math.min((long)start + maxMessageLength, length));
+      if (end == -1 && length - start >= maxMessageLength) {
+        // too long message, treated as regular text
+        reportRegularText(pos, start + 1);
+        pos = start + 1;
+        continue;
+      }
+
+      if (end == -1 && endOfInput) {
+        reportRegularText(pos, length);
+        pos = length;
+        break;
+      }
+
+      reportRegularText(pos, start);
+      pos = start;
+      if (end == -1) break;
+
+      final String body = myPending.substring(start + ServiceMessage.SERVICE_MESSAGE_START.length(), end - SERVICE_MESSAGE_END.length()).trim();
+      if (body.length() != 0) {
+        myParser.parseMessageBody(body, myMessageHolder, myCallback);
+      }
+      pos = end;
+    }
+
+    myPending.delete(0, pos);
+    if (endOfInput) {
+      myEndScanner.reset();
+    } else {
+      myEndScanner.shift(pos);
+    }
+  }
+
+  private int getPartialStartLength(final int from) {
+    final String start = ServiceMessage.SERVICE_MESSAGE_START;
+    final int length = myPending.length();
+    for (int partial = Math.min(start.length() - 1, length - from); partial > 0; partial--) {
+      if (regionMatches(length - partial, start, partial)) return partial;
+    }
+    return 0;
+  }
+
+  private boolean regionMatches(final int offset, @NotNull final String prefix, final int prefixLength) {
+    for (int i = 0; i < prefixLength; i++) {
+      if (myPending.charAt(offset + i) != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private void reportRegularText(final int from, final int to) {
+    if (to > from) {
+      myCallback.regularText(myPending.substring(from, to));
+    }
+  }
+}
@@ -21,11 +21,9 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 public class TestFailed extends BaseTestMessage {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   TestFailed() {
   }
 
@@ -33,8 +31,8 @@ public class TestFailed extends BaseTestMessage {
     super(ServiceMessageTypes.TEST_FAILED, name, createMap(exception));
   }
 
-  private static Map<String, String> createMap(final Throwable exception) {
-    Map<String, String> res = new LinkedHashMap<String, String>();
+  private static MessageAttributes createMap(final Throwable exception) {
+    MessageAttributes res = new MessageAttributes(2);
     if (exception == null) {
       return res;
     }
@@ -43,8 +41,8 @@ public class TestFailed extends BaseTestMessage {
     exception.printStackTrace(new PrintStream(out));
     String stacktrace = out.toString();
 
-    res.put("message", exception.getMessage());
-    res.put("details", stacktrace);
+    res.set("message", exception.getMessage());
+    res.set("details", stacktrace);
 
     return res;
   }
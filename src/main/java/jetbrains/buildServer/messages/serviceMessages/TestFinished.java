@@ -18,9 +18,18 @@ package jetbrains.buildServer.messages.serviceMessages;
 
 import java.util.Collections;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class TestFinished extends BaseTestMessage {
-  // reflection
+  /**
+   * Value of {@link #getDurationMillis()} when the duration is not specified or is not a valid number.
+   */
+  public static final long NO_DURATION = -1;
+
+  private long myDurationMillis;
+  private volatile boolean myDurationParsed;
+
+  // used by ServiceMessageFactoryRegistry
   TestFinished() {
   }
 
@@ -28,6 +37,10 @@ public class TestFinished extends BaseTestMessage {
     super(ServiceMessageTypes.TEST_FINISHED, name, Collections.singletonMap("duration", String.valueOf(duration)));
   }
 
+  /**
+   * @return test duration or null if it is not specified or is not a valid number
+   * @see #getDurationMillis()
+   */
   public Integer getTestDuration() {
     try {
       final String duration = getAttributeValue("duration");
@@ -37,6 +50,34 @@ public class TestFinished extends BaseTestMessage {
     }
   }
 
+  /**
+   * Returns test duration without boxing, the value is parsed on the first call.
+   * @return test duration in milliseconds or {@link #NO_DURATION} if it is not specified, is not a valid number or is negative
+   */
+  public long getDurationMillis() {
+    if (!myDurationParsed) {
+      myDurationMillis = parseDuration(getAttributeValue("duration"));
+      myDurationParsed = true;
+    }
+    return myDurationMillis;
+  }
+
+  private static long parseDuration(@Nullable final String duration) {
+    if (duration == null) return NO_DURATION;
+    try {
+      final long result = Long.parseLong(duration);
+      return result < 0 ? NO_DURATION : result;
+    } catch (NumberFormatException e) {
+      return NO_DURATION;
+    }
+  }
+
+  @Override
+  void clearCachedValues() {
+    super.clearCachedValues();
+    myDurationParsed = false;
+  }
+
   @Override
   public void visit(@NotNull ServiceMessageVisitor visitor) {
     visitor.visitTestFinished(this);
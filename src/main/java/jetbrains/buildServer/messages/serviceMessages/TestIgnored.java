@@ -20,7 +20,7 @@ import java.util.Collections;
 import org.jetbrains.annotations.NotNull;
 
 public class TestIgnored extends BaseTestMessage {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   TestIgnored() {
   }
 
@@ -16,13 +16,14 @@
 
 package jetbrains.buildServer.messages.serviceMessages;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class TestStarted extends BaseTestMessage {
-  // reflection
+  private boolean myCaptureStandardOutput;
+  private volatile boolean myCaptureStandardOutputParsed;
+
+  // used by ServiceMessageFactoryRegistry
   TestStarted() {
   }
 
@@ -30,10 +31,10 @@ public class TestStarted extends BaseTestMessage {
     super(ServiceMessageTypes.TEST_STARTED, name, createMap(captureStdOutput, locationHint));
   }
 
-  private static Map<String, String> createMap(final boolean captureStdOutput, @Nullable final String locationHint) {
-    Map<String, String> res = new LinkedHashMap<String, String>();
-    if (captureStdOutput) res.put("captureStandardOutput", "true");
-    if (locationHint != null) res.put("locationHint", locationHint);
+  private static MessageAttributes createMap(final boolean captureStdOutput, @Nullable final String locationHint) {
+    MessageAttributes res = new MessageAttributes(2);
+    if (captureStdOutput) res.set("captureStandardOutput", "true");
+    if (locationHint != null) res.set("locationHint", locationHint);
     return res;
   }
 
@@ -44,8 +45,12 @@ public class TestStarted extends BaseTestMessage {
    * @return the "captureStandardOutput" parameter value (false by default)
    */
   public boolean isCaptureStandardOutput() {
-    final String capture = getAttributeValue("captureStandardOutput");
-    return capture != null && capture.equalsIgnoreCase("true");
+    if (!myCaptureStandardOutputParsed) {
+      final String capture = getAttributeValue("captureStandardOutput");
+      myCaptureStandardOutput = capture != null && capture.equalsIgnoreCase("true");
+      myCaptureStandardOutputParsed = true;
+    }
+    return myCaptureStandardOutput;
   }
 
   /** This parameter allows to proved a hint for IDE when opening this test. Sometimes it is not enough to
@@ -57,6 +62,12 @@ public class TestStarted extends BaseTestMessage {
     return getAttributeValue("locationHint");
   }
 
+  @Override
+  void clearCachedValues() {
+    super.clearCachedValues();
+    myCaptureStandardOutputParsed = false;
+  }
+
   @Override
   public void visit(@NotNull ServiceMessageVisitor visitor) {
     visitor.visitTestStarted(this);
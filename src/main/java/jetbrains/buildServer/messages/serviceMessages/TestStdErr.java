@@ -20,7 +20,7 @@ import java.util.Collections;
 import org.jetbrains.annotations.NotNull;
 
 public class TestStdErr extends BaseTestMessage {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   TestStdErr() {
   }
 
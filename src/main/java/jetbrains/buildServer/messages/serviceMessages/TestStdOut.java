@@ -20,7 +20,7 @@ import java.util.Collections;
 import org.jetbrains.annotations.NotNull;
 
 public class TestStdOut extends BaseTestMessage {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   TestStdOut() {
   }
 
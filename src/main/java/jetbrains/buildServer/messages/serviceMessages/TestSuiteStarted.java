@@ -19,7 +19,7 @@ package jetbrains.buildServer.messages.serviceMessages;
 import org.jetbrains.annotations.NotNull;
 
 public class TestSuiteStarted extends BaseTestSuiteMessage {
-  // reflection
+  // used by ServiceMessageFactoryRegistry
   TestSuiteStarted() {
   }
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.messages.serviceMessages;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parser of the service message timestamps in the canonical forms "yyyy-MM-dd'T'HH:mm:ss.SSSZ" and
+ * "yyyy-MM-dd'T'HH:mm:ss.SSS" (with "T" or "'T'" as the date and time separator) which does not allocate objects.
+ * Other forms accepted by {@link java.text.SimpleDateFormat} are left to it.
+ */
+final class TimestampParser {
+  static final long NOT_PARSED = Long.MIN_VALUE;
+
+  private static final int MIN_YEAR = 1583; // the first full year of the Gregorian calendar
+  private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  private TimestampParser() {
+  }
+
+  /**
+   * @param text timestamp text
+   * @return epoch milliseconds for timestamp with time zone, local milliseconds (fields as if they were in UTC) for
+   * timestamp without time zone, or {@link #NOT_PARSED} if the text is not in the canonical form
+   */
+  static long parse(@NotNull final String text) {
+    final int length = text.length();
+    if (length < 23) return NOT_PARSED;
+
+    final int year = parseNumber(text, 0, 4);
+    final int month = parseNumber(text, 5, 2);
+    final int day = parseNumber(text, 8, 2);
+    if (text.charAt(4) != '-' || text.charAt(7) != '-') return NOT_PARSED;
+
+    int pos = 10;
+    if (text.charAt(pos) == 'T') {
+      pos += 1;
+    } else if (text.startsWith("'T'", pos)) {
+      pos += 3;
+    } else {
+      return NOT_PARSED;
+    }
+    if (length < pos + 12) return NOT_PARSED;
+
+    final int hour = parseNumber(text, pos, 2);
+    final int minute = parseNumber(text, pos + 3, 2);
+    final int second = parseNumber(text, pos + 6, 2);
+    final int millis = parseNumber(text, pos + 9, 3);
+    if (text.charAt(pos + 2) != ':' || text.charAt(pos + 5) != ':' || text.charAt(pos + 8) != '.') return NOT_PARSED;
+    pos += 12;
+
+    int offsetMinutes = 0;
+    if (pos != length) {
+      if (pos + 5 != length) return NOT_PARSED;
+      final char sign = text.charAt(pos);
+      final int offsetHours = parseNumber(text, pos + 1, 2);
+      final int offsetMinutesPart = parseNumber(text, pos + 3, 2);
+      if (sign != '+' && sign != '-' || offsetHours < 0 || offsetHours > 23 || offsetMinutesPart < 0 || offsetMinutesPart > 59) {
+        return NOT_PARSED;
+      }
+      offsetMinutes = (sign == '-' ? -1 : 1) * (offsetHours * 60 + offsetMinutesPart);
+    }
+
+    if (year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month) ||
+        hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0) {
+      return NOT_PARSED;
+    }
+
+    final long days = getEpochDay(year, month, day);
+    return (((days * 24 + hour) * 60 + minute - offsetMinutes) * 60 + second) * 1000 + millis;
+  }
+
+  /**
+   * @return true if the text parsed by {@link #parse(String)} has time zone
+   */
+  static boolean hasTimeZone(@NotNull final String text) {
+    return text.length() != 23 && text.length() != 25;
+  }
+
+  /**
+   * Converts local milliseconds returned by {@link #parse(String)} to epoch milliseconds in the default time zone
+   * the same way as {@link java.text.SimpleDateFormat} does.
+   */
+  static long localToEpochMillis(final long localMillis) {
+    final Calendar fields = new GregorianCalendar(UTC);
+    fields.setTimeInMillis(localMillis);
+
+    final Calendar local = new GregorianCalendar();
+    local.clear();
+    local.set(fields.get(Calendar.YEAR), fields.get(Calendar.MONTH), fields.get(Calendar.DAY_OF_MONTH),
+              fields.get(Calendar.HOUR_OF_DAY), fields.get(Calendar.MINUTE), fields.get(Calendar.SECOND));
+    local.set(Calendar.MILLISECOND, fields.get(Calendar.MILLISECOND));
+    return local.getTimeInMillis();
+  }
+
+  /**
+   * @return parsed non negative number or -1 if there are not only ASCII digits in the specified range
+   */
+  private static int parseNumber(@NotNull final String text, final int from, final int length) {
+    int result = 0;
+    for (int i = from; i < from + length; i++) {
+      final char c = text.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  private static int getDaysInMonth(final int year, final int month) {
+    if (month == 2 && isLeapYear(year)) return 29;
+    return DAYS_IN_MONTH[month - 1];
+  }
+
+  private static boolean isLeapYear(final int year) {
+    return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+  }
+
+  /**
+   * @return number of days since 1970-01-01 in the proleptic Gregorian calendar
+   */
+  private static long getEpochDay(final int year, final int month, final int day) {
+    final int y = month <= 2 ? year - 1 : year;
+    final int era = y / 400;
+    final int yearOfEra = y - era * 400;
+    final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}